@@ -45,7 +45,7 @@ class Hibernate4GriffonAddon {
             }
         },
         ShutdownStart: { app ->
-            Hibernate4Connector.instance.disconnect(app)
+            Hibernate4Connector.instance.disconnectAll(app)
         }
     ]
 }
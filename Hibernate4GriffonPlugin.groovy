@@ -105,6 +105,12 @@ must have a companion mapping file `sample/Person.hbm.xml`. These mapping files
 must be placed under `griffon-app/resources` in order to be picked up
 automatically by the plugin.
 
+Classes annotated with `@Entity`, `@MappedSuperclass` or `@Embeddable` are indexed when
+the application is packaged and registered from that index when a SessionFactory is
+configured, without scanning the classpath at runtime. Classes that also have an
+`hbm.xml` mapping are registered by their mapping file only. Run `griffon package` (or
+any command that packages resources) again after adding or removing annotated classes.
+
 ### Hibernate4Aware AST Transformation
 
 The preferred way to mark a class for method injection is by annotating it with
@@ -127,11 +133,12 @@ Dynamic method injection will be skipped for classes implementing
 The following events will be triggered by this addon
 
  * Hibernate4ConnectStart[config, dataSourceName] - triggered before connecting to the database
- * Hibernate4ConfigurationAvailable[configuration, dataSourceName, dataSourceConfig, hibernateConfig] - triggered before opening the SessionFactory
+ * Hibernate4ConfigurationAvailable[configuration, dataSourceName, dataSourceConfig, hibernateConfig, databaseMetaData] - triggered before opening the SessionFactory
  * Hibernate4SessionFactoryCreated[config, dataSourceName, sesstionFactory] - triggered after the SessionFactory was created
  * Hibernate4ConnectEnd[dataSourceName, sessionFactory] - triggered after connecting to the database
  * Hibernate4DisconnectStart[config, dataSourceName, sessionFactory] - triggered before disconnecting from the database
  * Hibernate4DisconnectEnd[config, dataSourceName] - triggered after disconnecting from the database
+ * Hibernate4EntitiesChanged[sessionFactoryName, changes] - triggered on the UI thread after entities were committed, when `changeEvents` is enabled
 
 ### Multiple Session Factories
 
@@ -149,6 +156,505 @@ The name of the seesion factory must match the name of a configured dataSource i
 `DataSource.groovy`. This block can be used inside the `environments()` block in
 the same way as the default sessionFactory block is used.
 
+### Rebuilding a SessionFactory
+
+A SessionFactory may be rebuilt with new mappings or properties without disconnecting
+its datasource. The new SessionFactory is built in the background and swapped in once
+ready; calls to `withHibernate4` that are already running finish on the previous
+SessionFactory, which is closed as soon as they complete
+
+    ConfigObject config = Hibernate4Connector.instance.createConfig(app)
+    config.sessionFactory.props = ['hibernate.jdbc.batch_size': '50']
+    Future<SessionFactory> f = Hibernate4Connector.instance.rebuild(app, config, 'default')
+
+Rebuilding is not supported when `dbCreate` is set to `create-drop`; `create` is
+treated as `update`. The `Hibernate4RebuildStart[config, dataSourceName]` and
+`Hibernate4RebuildEnd[dataSourceName, sessionFactory]` events are triggered around
+the rebuild.
+
+### Database Metadata
+
+Database metadata (product name and version, driver, SQL keywords, identifier quoting
+and optionally tables and columns) is read once per datasource using a single connection
+and cached. Dialect detection reads from this snapshot, which is also available to your
+own code
+
+    DataSource dataSource = DataSourceHolder.instance.getDataSource('default')
+    def metaData = JdbcUtils.snapshotDatabaseMetaData(dataSource, true)
+    println metaData.databaseProductName
+    println metaData.tables.keySet()
+
+where `JdbcUtils` is `griffon.plugins.hibernate4.internal.JdbcUtils`. The snapshot is
+discarded when the datasource is disconnected.
+
+### Write-behind Queue
+
+Small, independent writes (preferences, audit rows, status flags) may be handed to a
+write-behind queue instead of running each one in its own transaction. Every session
+factory has a queue whose single writer thread groups pending units of work into one
+transaction, bounded by size and time
+
+    Future f = Hibernate4Holder.instance.getWriteQueue('default').submit { sessionFactoryName, session ->
+        session.saveOrUpdate(preference)
+    }
+
+The returned `Future` completes once the batch commits. If a unit fails, the batch is
+rolled back and each unit is retried in its own transaction. Submitting blocks when the
+queue is full and fails with a `RejectedExecutionException` once `submitTimeout` elapses.
+Settings are configured per session factory in `Hibernate4Config.groovy`
+
+    sessionFactory {
+        writeBehind {
+            capacity = 10000       // pending units of work
+            batchSize = 200        // units of work per transaction
+            maxDelay = 50          // milliseconds to wait for a batch to fill up
+            submitTimeout = 5000   // milliseconds to wait for room in the queue
+            shutdownTimeout = 10000
+        }
+    }
+
+Pending work is flushed when the session factory is disconnected.
+
+### Admission Control
+
+Concurrent access to a session factory may be bounded, so that callers wait in a short,
+predictable line (or are rejected outright) instead of piling up inside the connection
+pool. Admission control is disabled unless `maxConcurrent` is set
+
+    sessionFactory {
+        bulkhead {
+            maxConcurrent = 8      // callers running at the same time
+            maxQueued = 32         // callers allowed to wait for admission
+            acquireTimeout = 2000  // milliseconds a caller may wait
+            failFast = false       // reject immediately when no permit is available
+        }
+    }
+
+Rejected calls fail with a `java.util.concurrent.RejectedExecutionException`. Counters
+for active, queued, admitted, rejected and timed out calls are available through
+`Hibernate4Connector.instance.resolveHibernate4Provider(app).getBulkhead('default')`.
+
+Permits are held per thread. Calls nested within an admitted call on the same thread do
+not take another permit, and the chunks and partitions that bulk operations and
+partitioned reads fan out from an admitted call run under the caller's permit.
+
+### Multi-tenancy
+
+A single SessionFactory may serve several tenants using Hibernate's schema or database
+based multi-tenancy. With `schema` every tenant lives in its own schema of the session
+factory's datasource; with `database` every tenant is served by its own datasource, as
+configured in `DataSource.groovy`
+
+    sessionFactory {
+        multiTenancy {
+            strategy = 'schema'                // or 'database'
+            defaultTenant = 'PUBLIC'           // used by calls that specify no tenant
+            schemaStatement = 'SET SCHEMA %s'  // e.g, 'SET search_path TO %s' for PostgreSQL
+            tenants = [acme: 'ACME']           // tenant id -> schema or datasource name
+        }
+    }
+
+Tenant identifiers not listed in `tenants` are used verbatim as schema or datasource
+names. The tenant is given as an additional argument
+
+    withHibernate4('default', 'acme') { sessionFactoryName, session -> ... }
+
+The tenant-aware variants are available on `AbstractHibernate4Provider` and on
+metaclasses enhanced with it; they are not part of the `Hibernate4Provider` contract.
+A `null` second argument matches the tenant, `CancellationHandle` and `FetchPlan`
+variants alike, so Groovy cannot pick one; cast it, as in `(String) null`, or use the
+two argument form instead.
+
+Hibernate cannot create, update or validate the schema of a multi-tenant SessionFactory.
+Tenant schemas must exist beforehand; set `dbCreate = 'skip'` in `DataSource.groovy`.
+Other `dbCreate` values are rejected when the SessionFactory is created.
+
+### Columnar Projections
+
+Large numeric reports can skip the `Object[]` rows and boxed values Hibernate creates by
+reading a native query straight into primitive arrays. Columns are declared in select
+order as `long`, `double` or timestamp (stored as epoch milliseconds)
+
+    def projection = new ColumnarProjection('SELECT id, created, amount FROM sale WHERE region = ?')
+        .param('EU').longColumn().timestampColumn().doubleColumn()
+    def provider = Hibernate4Connector.instance.resolveHibernate4Provider(app)
+    ColumnarResult result = provider.withColumns('default', projection)
+    double[] amounts = result.getDoubles(2) // valid up to result.size()
+
+Results may also be streamed in chunks, which are reused between calls
+
+    provider.withColumns('default', projection, 10000, { chunk -> chart.add(chunk) } as ColumnarHandler)
+
+### Keyset Pagination
+
+`griffon.plugins.hibernate4.KeysetPager` pages through ordered results by seeking past the
+keys of the last row seen instead of using `setFirstResult`, so deep pages cost the same as
+the first one. Pages are requested with an opaque token (`null` for the first page)
+
+    KeysetPager pager = KeysetPager.forQuery('from Person p where p.active = :active')
+        .param('active', true)
+        .asc('p.lastName')
+        .asc('p.id')
+        .pageSize(50)
+    KeysetPage page = withHibernate4 { sessionFactoryName, session -> pager.page(session, token) }
+    // page.items, page.nextToken, page.previousToken
+
+Criteria queries are supported through `KeysetPager.forCriteria { session -> session.createCriteria(Person) }`
+with keys given as property names. Keys must not be nullable and the last key must be unique.
+Keys may be numbers, strings, booleans or dates; tokens carry these values as plain typed
+data and are safe to hand out to clients. HQL queries must give the root entity an
+explicit alias, as in `from Person p`.
+
+### Lazy Table Models
+
+`griffon.plugins.hibernate4.Hibernate4LazyTableModel` is a Swing `TableModel` that loads
+rows page by page, on demand, outside the UI thread. Pages are kept in a bounded LRU cache
+and the pages ahead of the scroll direction are prefetched
+
+    def model = new Hibernate4LazyTableModel('default',
+        ['Name', 'Email'] as String[],
+        ['name', 'email'] as String[],
+        [count: { session -> session.createQuery('select count(*) from Person').uniqueResult() as int },
+         fetch: { session, offset, limit ->
+             session.createQuery('from Person order by id').setFirstResult(offset).setMaxResults(limit).list()
+         }] as PageFetcher,
+        100,  // rows per page
+        50,   // cached pages
+        2)    // pages to prefetch
+    table(model: model)
+
+Rows that have not been loaded yet are displayed as empty cells. Call `refresh()` to
+reload and `dispose()` once the view is destroyed.
+
+Pages are loaded latest first: the pages on screen are served before those passed while
+scrolling and before prefetched ones, and stale requests are dropped. Failures to count or
+load rows are reported on the UI thread as changes of the model's `error` property
+
+    model.addPropertyChangeListener('error', { e -> showError(e.newValue) } as PropertyChangeListener)
+
+`griffon.plugins.hibernate4.KeysetPageFetcher` reads pages through a `KeysetPager` instead of
+offsets; the pager's page size must match the model's
+
+    def pager = KeysetPager.forQuery('from Person p').asc('p.id').pageSize(100)
+    def fetcher = new KeysetPageFetcher(pager, { session ->
+        session.createQuery('select count(*) from Person').uniqueResult() as int
+    })
+
+### Entity Change Events
+
+Views that display entities may be notified when those entities change. Enable the
+`changeEvents` block in `Hibernate4Config.groovy`
+
+    sessionFactory {
+        changeEvents {
+            enabled = true
+            interval = 250      // milliseconds between notifications
+            maxIds = 1000       // identifiers kept per entity and interval
+            eventName = 'Hibernate4EntitiesChanged'
+        }
+    }
+
+Inserts, updates and deletes are collected once their transaction commits and are
+published at most once per interval, on the UI thread, as a single
+`Hibernate4EntitiesChanged[sessionFactoryName, changes]` event. `changes` maps entity
+names to `griffon.plugins.hibernate4.Hibernate4EntityChangeSet` instances holding the
+identifiers that were inserted, updated or deleted. When more than `maxIds` identifiers
+change within an interval the change set reports `isOverflow()` and listeners should
+reload the whole view instead.
+
+### Bytecode Enhancement
+
+Entities may be enhanced with Hibernate's build-time instrumentation when the application
+is packaged, enabling lazy loading of individual properties (such as large text columns)
+and field interception. Enable it in `BuildConfig.groovy`
+
+    hibernate4 {
+        instrument {
+            enabled = true
+            extended = false  // also intercept direct field access from non-entity classes
+        }
+    }
+
+Classes annotated with `@Entity`, `@MappedSuperclass` or `@Embeddable`, as well as the
+classes mapped in `*.hbm.xml` files, are enhanced in place. Mark the properties to be
+loaded on first access with `@Basic(fetch = FetchType.LAZY)` or `lazy="true"`. At runtime
+the enhanced entities are verified when the SessionFactory is configured; entities whose
+class files are stale are reported and their lazy properties are loaded eagerly.
+
+### Cancellable Calls
+
+Calls made on behalf of a view may be abandoned when the user navigates away. Pass a
+`griffon.plugins.hibernate4.CancellationHandle` to `withHibernate4` and cancel it from any
+thread
+
+    def handle = new CancellationHandle(30) // optional statement timeout, in seconds
+    execOutsideUI {
+        def people = withHibernate4('default', handle) { sessionFactoryName, session ->
+            session.createQuery('from Person p where p.name like :name')
+                   .setParameter('name', "%${query}%").list()
+        }
+    }
+    ...
+    handle.cancel()
+
+Cancelling cancels the running statement, rolls back the transaction and returns the
+connection to the pool; the call fails with a `CancellationException`. Blocks issuing
+several statements may call `handle.checkCancelled()` between them.
+
+### Reference Data Cache
+
+Reference tables that rarely change (catalogs, codes, currencies) may be kept in memory
+mapped files that survive restarts, by means of `griffon.plugins.hibernate4.Hibernate4ReferenceCache`
+
+    def cache = new Hibernate4ReferenceCache(new File(System.getProperty('user.home'), '.myapp/reference'))
+    ReferenceTable currencies = withHibernate4 { sessionFactoryName, session ->
+        cache.load(session, 'currencies',
+            'select code, name, rate from currency',
+            'select max(last_updated) from currency')
+    }
+    currencies.size().times { i -> println currencies.getValue(i, 'code') }
+
+The version query runs on every load; when its result matches the one stored with the
+file the rows are mapped back in without querying them, otherwise they are queried and
+stored again. Rows are decoded from the mapped file on access instead of being held on
+the heap. Queries are native SQL.
+
+### Local Replicas
+
+A SessionFactory backed by a local embedded database may replicate selected tables of a
+remote one, so that reads are served locally. Configure the `replica` block on the local
+SessionFactory in `Hibernate4Config.groovy`
+
+    sessionFactories {
+        local {
+            replica {
+                remote = 'default'   // name of the remote SessionFactory
+                interval = 30000     // milliseconds between syncs
+                retention = 604800000 // milliseconds deletes are kept in the remote change log
+                autoStart = true
+                tables {
+                    currency { key = 'id'; version = 'last_updated' }
+                    country  { key = 'code'; version = 'last_updated' }
+                }
+            }
+        }
+    }
+
+Reads and writes made with `withHibernate4('local') { ... }` hit the local database. In
+the background, local changes are pushed to the remote database and remote rows whose
+version column grew since the last sync are pulled. Version columns must grow across the
+whole table, such as a last modified timestamp. When a remote row is newer than a pushed
+local change the remote state wins. Remote rows that changed locally since the last push
+are not pulled until the local change is pushed.
+
+Local changes are tracked in a `HIBERNATE4_CHANGES` table and sync progress in a
+`HIBERNATE4_SYNC` table, both created when the SessionFactory connects. Remote deletes are
+read from the `HIBERNATE4_CHANGES` table of the remote database; applications writing to
+the remote database by other means must record their deletes there too. Entries older than
+`retention`, a week by default, are removed from it; a replica that does not sync for
+longer may miss remote deletes. The replica is available
+from `Hibernate4Holder.instance.getReplica('local')`, whose `sync()` method syncs right
+away, e.g, at startup. Two H2 databases may stand in for the local and remote ones.
+
+### Session Watchdog
+
+Sessions held for too long, typically by a long transaction in a background task, may be
+reported by enabling the `watchdog` block of a SessionFactory in `Hibernate4Config.groovy`
+
+    sessionFactory {
+        watchdog {
+            enabled = true
+            warnAfter = 30000         // log a warning once a session is this old, in ms
+            errorAfter = 120000       // log an error once a session is this old, in ms
+            checkInterval = 5000
+            captureStackTraces = true // remember where every session was opened
+        }
+    }
+
+Reports include the thread holding the session, whether its transaction is still active,
+the call site that opened it and the current stack of the holding thread. Sessions left
+open after their call completes are reported as leaks. The sessions open at any time are
+available from the provider
+
+    DefaultHibernate4Provider.instance.getWatchdog('default').openSessions.each { println it }
+
+### Session Guard
+
+The number of entities a session keeps in its persistence context may be bounded by
+enabling the `sessionGuard` block of a SessionFactory in `Hibernate4Config.groovy`
+
+    sessionFactory {
+        sessionGuard {
+            enabled = true
+            threshold = 10000 // entities held by a single session
+            policy = 'flush'  // or 'warn'
+        }
+    }
+
+The count is checked after entities are saved, updated or persisted, and after a session
+is flushed ahead of a query, but never in the middle of a cascade or a flush. Past the
+threshold the `warn` policy logs a warning, with the call site, once per session; the
+`flush` policy flushes and clears the session, detaching any entities still referenced by
+the calling code.
+
+### Block Identifier Generator
+
+`griffon.plugins.hibernate4.BlockIdentifierGenerator` hands out identifiers from blocks
+reserved in the database, so that concurrent inserts neither contend on a lock nor pay a
+round trip per identifier. The next block is reserved in the background before the
+current one runs out
+
+    @Id
+    @GeneratedValue(generator = 'blocks')
+    @GenericGenerator(name = 'blocks', strategy = 'griffon.plugins.hibernate4.BlockIdentifierGenerator',
+        parameters = [@Parameter(name = 'block_size', value = '1000'),
+                      @Parameter(name = 'sequence_name', value = 'person_blocks')])
+    Long id
+
+Blocks are numbered by a sequence (`sequence_name`) or, when no sequence is given, by a
+row of the `HIBERNATE4_ID_BLOCKS` table (`table_name`) keyed by the entity's table name
+(`segment_value`). `prefetch_threshold` sets how many identifiers may remain in the
+current block before the next one is reserved; it defaults to half a block.
+
+### Fetch Plans
+
+Associations fetched for a given use case may be declared as named fetch plans in
+`Hibernate4Config.groovy`
+
+    sessionFactory {
+        fetchPlans {
+            personDetail {
+                join = ['com.acme.Person.addresses', 'com.acme.Person.company']
+            }
+        }
+    }
+
+Every plan is registered as a Hibernate fetch profile. Pass the plans to enable to
+`withHibernate4` with a `griffon.plugins.hibernate4.FetchPlan`
+
+    withHibernate4('default', FetchPlan.of('personDetail')) { sessionFactoryName, session ->
+        session.get(Person, id)
+    }
+
+Fetch profiles declared in mappings may be named as well. Plans apply to entities loaded
+by identifier and to the associations loaded with them; HQL queries keep using their own
+`join fetch` clauses.
+
+### Bulk Operations
+
+Large HQL updates and deletes may be split in chunks of consecutive keys, every chunk
+running in a short transaction of its own so that locks are not held for long, with
+`griffon.plugins.hibernate4.BulkOperation`
+
+    def operation = BulkOperation.forStatement('update Person p set p.active = false where p.lastLogin < :cutoff')
+        .param('cutoff', cutoff)
+        .key('p.id')
+        .chunkSize(5000)
+        .parallelism(4)
+        .checkpoint('deactivate-people', new FileBulkCheckpoint(new File('checkpoints.properties')))
+        .progress({ low, high, rows, totalRows, completed, maxChunks ->
+            println "$completed chunks of at most $maxChunks, $totalRows rows"
+        } as BulkProgressListener)
+    long rows = DefaultHibernate4Provider.instance.withBulkOperation('default', operation)
+
+Keys must be numeric. Every chunk starts at the next matching key, so sparse keys do not
+cost empty chunks. Chunks run in parallel on separate sessions when `parallelism` is
+greater than 1, and are handed out as earlier ones finish. With a checkpoint, an
+interrupted operation resumes at the lowest key of the chunks not yet committed; chunks
+past that point may run again, so statements should be idempotent.
+
+### Partitioned Reads
+
+A single large query may be read in partitions of consecutive keys, every partition on a
+session and connection of its own, with `griffon.plugins.hibernate4.PartitionedQuery`.
+Rows are streamed in batches, reduced concurrently and merged one batch at a time by a
+`griffon.plugins.hibernate4.PartitionCombiner`
+
+    def combiner = new PartitionCombiner<BigDecimal, BigDecimal>() {
+        BigDecimal total = 0
+        BigDecimal reduce(long low, long high, List rows) { rows.sum() ?: 0 }
+        void combine(BigDecimal partial) { total += partial }
+        BigDecimal result() { total }
+    }
+    def query = PartitionedQuery.forQuery('select o.amount from Order o where o.month = :month')
+        .param('month', month)
+        .key('o.id')
+        .parallelism(4)
+    BigDecimal total = DefaultHibernate4Provider.instance.withPartitions('default', query, combiner)
+
+Keys must be numeric. The key range is split in `partitions` ranges of equal width (four
+per thread by default) which are read by up to `parallelism` threads. Partitions are
+read-only and scrolled forward only; `reduce` receives up to `batchSize` rows at a time
+(1000 by default). Queries may join other entities; `group by` and `order by` clauses
+apply to every partition on its own.
+
+### Compressed Columns
+
+Large `String` and `byte[]` properties may be stored compressed in a binary column with
+`griffon.plugins.hibernate4.CompressedStringType` and
+`griffon.plugins.hibernate4.CompressedBinaryType`
+
+    <property name="payload">
+        <type name="griffon.plugins.hibernate4.CompressedStringType">
+            <param name="codec">deflate</param>
+            <param name="level">1</param>
+            <param name="threshold">1024</param>
+        </type>
+    </property>
+
+The `codec` is either `deflate` (default) or `gzip`; `level` goes from 1 (fastest, default)
+to 9 (smallest). Values smaller than `threshold` bytes (512 by default), and values that do
+not shrink, are stored raw. Every value records the codec it was written with, so settings
+may change without rewriting existing rows. The column type defaults to `longvarbinary` and
+may be set to `varbinary` or `blob` with the `sql_type` parameter. Generated `varbinary`
+columns hold 255 bytes unless the column mapping sets a `length`.
+
+### Streaming LOBs
+
+Properties mapped as `java.sql.Blob` or `java.sql.Clob` may be read and written as streams
+or channels, in buffers of 64 KB, without loading the whole value in memory. Within
+`withHibernate4` use `griffon.plugins.hibernate4.Hibernate4Lobs`
+
+    withHibernate4 { sessionFactoryName, session ->
+        Document document = new Document(name: file.name)
+        document.content = Hibernate4Lobs.createBlob(session, new FileInputStream(file), file.length())
+        session.save(document)
+    }
+
+The provider reads and writes a single property of an entity in a session of its own
+
+    def provider = DefaultHibernate4Provider.instance
+    new FileOutputStream(target).withStream { out ->
+        provider.readBlob('default', Document, documentId, 'content', out)
+    }
+    provider.writeBlob('default', Document, documentId, 'content', file.newInputStream(), file.length())
+
+`readClob` and `writeClob` do the same with readers and writers. Mapping LOB columns as
+`byte[]` or `String` always loads values completely.
+
+### Named Query Checks
+
+Named HQL and native SQL queries are compiled when a SessionFactory is built, one after
+another, failing at the first broken query. Enable the `namedQueries` block of a
+SessionFactory in `Hibernate4Config.groovy` to compile them in parallel into the query
+plan cache and report every broken query at once
+
+    sessionFactory {
+        namedQueries {
+            parallelCheck = true
+            parallelism = 4     // threads; defaults to the number of processors
+            failOnError = true  // close the SessionFactory and fail when any query is broken
+        }
+        queryPlanCache {
+            maxSize = 4096                 // query plans kept, least recently used are evicted
+            parameterMetadataMaxSize = 512 // parameter metadata of native queries kept
+        }
+    }
+
+Every error is logged with the name of its query. Size the query plan cache to hold the
+named queries plus the dynamic queries in regular use, so that plans are not compiled
+again under load.
+
 ### Configuration Storage
 
 The plugin will load and store the contents of `Hibernate4Config.groovy` inside the
@@ -165,6 +671,30 @@ behavior is not desired then specify the following configuration flag in
 
     griffon.hibernate4.connect.onstartup = false
 
+### Shutdown
+
+Every connected SessionFactory is disconnected in parallel when the application shuts
+down. Running `withHibernate4` calls are given time to finish before their SessionFactory
+is closed; SessionFactories still busy once the deadline passes are closed regardless.
+The deadline, in milliseconds, is set in `Config.groovy`
+
+    griffon.hibernate4.shutdown.timeout = 10000
+
+### Snapshots
+
+Reference data may be seeded from a binary snapshot instead of persisting entities
+one at a time. `griffon.plugins.hibernate4.Hibernate4Snapshot` streams the contents
+of tables (or mapped entities) into a file and loads them back using JDBC batches
+on a `StatelessSession`. Tables that do not depend on each other may be loaded in
+parallel, for example from `BootstrapHibernate4`
+
+    def init = { String dataSourceName, Session session ->
+        new Hibernate4Snapshot(session.sessionFactory).load(new File('seed.snapshot'), 4)
+    }
+
+A snapshot is created with `save(file, 'sample.Person', 'ADDRESS', ...)`. Tables are
+written in the given order, which is the order used when loading sequentially.
+
 ### Example
 
 A trivial sample application can be found at [https://github.com/aalmiray/griffon_sample_apps/tree/master/persistence/hibernate4][3]
@@ -13,6 +13,9 @@
  * See the License for the specific language governing permissions and
  */
 
+import org.hibernate.bytecode.buildtime.internal.JavassistInstrumenter
+import org.hibernate.bytecode.buildtime.spi.Instrumenter
+import org.hibernate.bytecode.buildtime.spi.Logger
 import org.springframework.core.io.Resource
 
 /**
@@ -30,4 +33,74 @@ eventPackageResourcesEnd = {
             mappingsFile.append((res.file.absolutePath - resourcesDir.absolutePath)[1..-1] + '\n')
         }
     }
-}
\ No newline at end of file
+
+    Map<String, File> mappedFiles = [:]
+    Map<String, File> annotatedFiles = [:]
+    collectEntityClasses(mappings, mappedFiles, annotatedFiles)
+
+    File entitiesFile = new File("${resourcesDir}/META-INF/hibernate4/entities.txt")
+    entitiesFile.delete()
+    if (annotatedFiles) {
+        entitiesFile.parentFile.mkdirs()
+        entitiesFile.text = annotatedFiles.keySet().sort().join('\n') + '\n'
+    }
+
+    File instrumentedFile = new File("${resourcesDir}/META-INF/hibernate4/instrumented.txt")
+    instrumentedFile.delete()
+    if (buildConfig.hibernate4?.instrument?.enabled) {
+        instrumentEntities(mappedFiles + annotatedFiles, instrumentedFile, buildConfig.hibernate4.instrument.extended as boolean)
+    }
+}
+
+ENTITY_ANNOTATIONS = ['Ljavax/persistence/Entity;', 'Ljavax/persistence/MappedSuperclass;', 'Ljavax/persistence/Embeddable;']
+
+/*
+ * Sorts the compiled classes of the application into classes mapped by hbm.xml files and
+ * annotated entities, embeddables and mapped superclasses that have no hbm.xml mapping.
+ */
+collectEntityClasses = { Resource[] mappings, Map<String, File> mappedFiles, Map<String, File> annotatedFiles ->
+    File classesDir = griffonSettings.classesDir
+    Set<String> mappedClasses = [] as Set
+    mappings?.each { res ->
+        def hbm = new XmlSlurper(false, false)
+        hbm.setFeature('http://apache.org/xml/features/nonvalidating/load-external-dtd', false)
+        def root = hbm.parse(res.file)
+        String pkg = root.@package.text()
+        root.'**'.findAll { it.name() in ['class', 'subclass', 'joined-subclass', 'union-subclass', 'component'] }.each { node ->
+            // a component's name is the property holding it; its class is only known when declared
+            String name = node.name() == 'component' ? node.@class.text() : node.@name.text()
+            if (name) mappedClasses << (pkg && !name.contains('.') ? "${pkg}.${name}" : name)
+        }
+    }
+
+    if (!classesDir.exists()) return
+    classesDir.eachFileRecurse { File file ->
+        if (!file.name.endsWith('.class')) return
+        String className = (file.absolutePath - classesDir.absolutePath)[1..-7].replace(File.separatorChar, '.' as char)
+        if (className in mappedClasses) {
+            mappedFiles[className] = file
+            return
+        }
+        // annotations are referenced by descriptor from the constant pool
+        String bytes = new String(file.bytes, 'ISO-8859-1')
+        if (ENTITY_ANNOTATIONS.any { bytes.contains(it) }) annotatedFiles[className] = file
+    }
+}
+
+instrumentEntities = { Map<String, File> entityFiles, File instrumentedFile, boolean extended ->
+    if (!entityFiles) return
+
+    Logger logger = [
+        trace: { String message -> },
+        debug: { String message -> },
+        info: { String message -> },
+        warn: { String message -> println "[hibernate4] $message" },
+        error: { String message -> println "[hibernate4] $message" }
+    ] as Logger
+    Instrumenter.Options options = [performExtendedInstrumentation: { -> extended }] as Instrumenter.Options
+    new JavassistInstrumenter(logger, options).execute(entityFiles.values() as Set)
+
+    instrumentedFile.parentFile.mkdirs()
+    instrumentedFile.text = entityFiles.keySet().sort().join('\n') + '\n'
+    println "Instrumented ${entityFiles.size()} entity class(es) for Hibernate"
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.usertype.ParameterizedType;
+import org.hibernate.usertype.UserType;
+
+import java.io.*;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.*;
+
+/**
+ * <p>Base class of the types that store values compressed in a binary column.</p>
+ * <p>Supported parameters are</p>
+ * <ul>
+ * <li>{@code codec}: {@code deflate} (default) or {@code gzip}.</li>
+ * <li>{@code level}: compression level, from 1 (fastest, default) to 9 (smallest).</li>
+ * <li>{@code threshold}: values smaller than this many bytes are stored raw; defaults to 512.</li>
+ * <li>{@code sql_type}: {@code longvarbinary} (default), {@code varbinary} or {@code blob}. Generated
+ * {@code varbinary} columns are only as long as the {@code length} of the column mapping, 255
+ * bytes unless set.</li>
+ * </ul>
+ * <p>Every stored value starts with a byte naming the codec it was written with, so that
+ * codecs and thresholds may be changed without rewriting existing rows. Values that do not
+ * shrink are stored raw as well.</p>
+ *
+ * @author Andres Almiray
+ */
+public abstract class AbstractCompressedType implements UserType, ParameterizedType {
+    public static final String CODEC = "codec";
+    public static final String LEVEL = "level";
+    public static final String THRESHOLD = "threshold";
+    public static final String SQL_TYPE = "sql_type";
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final byte GZIP = 2;
+    private static final int BUFFER_SIZE = 8192;
+
+    private byte codec = DEFLATE;
+    private int level = Deflater.BEST_SPEED;
+    private int threshold = DEFAULT_THRESHOLD;
+    private int sqlType = Types.LONGVARBINARY;
+
+    public void setParameterValues(Properties parameters) {
+        if (parameters == null) return;
+        String codecName = parameters.getProperty(CODEC, "deflate").trim().toLowerCase(Locale.ENGLISH);
+        if ("deflate".equals(codecName)) {
+            codec = DEFLATE;
+        } else if ("gzip".equals(codecName)) {
+            codec = GZIP;
+        } else {
+            throw new HibernateException("Unknown codec '" + codecName + "'; expected deflate or gzip");
+        }
+        level = ConfigurationHelper.getInt(LEVEL, parameters, Deflater.BEST_SPEED);
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new HibernateException("Compression level must be between 1 and 9 but was " + level);
+        }
+        threshold = ConfigurationHelper.getInt(THRESHOLD, parameters, DEFAULT_THRESHOLD);
+        String sqlTypeName = parameters.getProperty(SQL_TYPE, "longvarbinary").trim().toLowerCase(Locale.ENGLISH);
+        if ("varbinary".equals(sqlTypeName)) {
+            sqlType = Types.VARBINARY;
+        } else if ("longvarbinary".equals(sqlTypeName)) {
+            sqlType = Types.LONGVARBINARY;
+        } else if ("blob".equals(sqlTypeName)) {
+            sqlType = Types.BLOB;
+        } else {
+            throw new HibernateException("Unknown sql_type '" + sqlTypeName + "'; expected varbinary, longvarbinary or blob");
+        }
+    }
+
+    /**
+     * Converts a non-null value to the bytes to be stored.
+     */
+    protected abstract byte[] toBytes(Object value);
+
+    /**
+     * Converts stored bytes back to a value.
+     */
+    protected abstract Object fromBytes(byte[] bytes);
+
+    public int[] sqlTypes() {
+        return new int[]{sqlType};
+    }
+
+    public Object nullSafeGet(ResultSet rs, String[] names, SessionImplementor session, Object owner) throws HibernateException, SQLException {
+        byte[] stored = rs.getBytes(names[0]);
+        return stored != null ? fromBytes(decompress(stored)) : null;
+    }
+
+    public void nullSafeSet(PreparedStatement st, Object value, int index, SessionImplementor session) throws HibernateException, SQLException {
+        if (value == null) {
+            st.setNull(index, sqlType);
+        } else {
+            st.setBytes(index, compress(toBytes(value)));
+        }
+    }
+
+    public boolean isMutable() {
+        return false;
+    }
+
+    public Object deepCopy(Object value) throws HibernateException {
+        return value;
+    }
+
+    public boolean equals(Object x, Object y) throws HibernateException {
+        return x == y || (x != null && x.equals(y));
+    }
+
+    public int hashCode(Object x) throws HibernateException {
+        return x.hashCode();
+    }
+
+    public Serializable disassemble(Object value) throws HibernateException {
+        return (Serializable) deepCopy(value);
+    }
+
+    public Object assemble(Serializable cached, Object owner) throws HibernateException {
+        return deepCopy(cached);
+    }
+
+    public Object replace(Object original, Object target, Object owner) throws HibernateException {
+        return deepCopy(original);
+    }
+
+    private byte[] compress(byte[] bytes) {
+        if (bytes.length >= threshold) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, bytes.length / 2));
+            out.write(codec);
+            try {
+                if (codec == GZIP) {
+                    final int gzipLevel = level;
+                    GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE) {
+                        {
+                            def.setLevel(gzipLevel);
+                        }
+                    };
+                    gzip.write(bytes);
+                    gzip.close();
+                } else {
+                    Deflater deflater = new Deflater(level);
+                    try {
+                        DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                        deflate.write(bytes);
+                        deflate.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            } catch (IOException e) {
+                throw new HibernateException("Could not compress value", e);
+            }
+            if (out.size() < bytes.length + 1) return out.toByteArray();
+        }
+        byte[] raw = new byte[bytes.length + 1];
+        raw[0] = RAW;
+        System.arraycopy(bytes, 0, raw, 1, bytes.length);
+        return raw;
+    }
+
+    private static byte[] decompress(byte[] stored) {
+        if (stored.length == 0) {
+            throw new HibernateException("Compressed value has no codec header");
+        }
+        byte header = stored[0];
+        if (header == RAW) {
+            byte[] raw = new byte[stored.length - 1];
+            System.arraycopy(stored, 1, raw, 0, raw.length);
+            return raw;
+        }
+        InputStream source = new ByteArrayInputStream(stored, 1, stored.length - 1);
+        Inflater inflater = null;
+        try {
+            InputStream in;
+            if (header == GZIP) {
+                in = new GZIPInputStream(source, BUFFER_SIZE);
+            } else if (header == DEFLATE) {
+                inflater = new Inflater();
+                in = new InflaterInputStream(source, inflater, BUFFER_SIZE);
+            } else {
+                throw new HibernateException("Unknown codec header " + header);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 3);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new HibernateException("Could not decompress value", e);
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+}
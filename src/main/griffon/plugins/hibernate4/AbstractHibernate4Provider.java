@@ -18,11 +18,22 @@ package griffon.plugins.hibernate4;
 
 import griffon.util.CallableWithArgs;
 import groovy.lang.Closure;
+import org.hibernate.ObjectNotFoundException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static griffon.util.GriffonNameUtils.isBlank;
 
 /**
@@ -31,56 +42,389 @@ import static griffon.util.GriffonNameUtils.isBlank;
 public abstract class AbstractHibernate4Provider implements Hibernate4Provider {
     private static final Logger LOG = LoggerFactory.getLogger(AbstractHibernate4Provider.class);
     private static final String DEFAULT = "default";
+    private final Map<String, Hibernate4Bulkhead> bulkheads = new ConcurrentHashMap<String, Hibernate4Bulkhead>();
+    private final Map<String, Hibernate4Watchdog> watchdogs = new ConcurrentHashMap<String, Hibernate4Watchdog>();
+    private final Map<String, Hibernate4SessionGuard> sessionGuards = new ConcurrentHashMap<String, Hibernate4SessionGuard>();
 
     public <R> R withHibernate4(Closure<R> closure) {
         return withHibernate4(DEFAULT, closure);
     }
 
-    public <R> R withHibernate4(String sessionFactoryName, Closure<R> closure) {
-        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
-        if (closure != null) {
-            SessionFactory sf = getSessionFactory(sessionFactoryName);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Executing statements on session '" + sessionFactoryName + "'");
-            }
-            Session session = sf.openSession();
-            try {
-                session.beginTransaction();
+    public <R> R withHibernate4(String sessionFactoryName, final Closure<R> closure) {
+        if (closure == null) return null;
+        return doWithSession(sessionFactoryName, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
                 return closure.call(sessionFactoryName, session);
-            } finally {
-                if (!session.getTransaction().wasRolledBack()) {
-                    session.getTransaction().commit();
-                }
-                session.close();
             }
-        }
-        return null;
+        });
     }
 
     public <R> R withHibernate4(CallableWithArgs<R> callable) {
         return withHibernate4(DEFAULT, callable);
     }
 
-    public <R> R withHibernate4(String sessionFactoryName, CallableWithArgs<R> callable) {
+    public <R> R withHibernate4(String sessionFactoryName, final CallableWithArgs<R> callable) {
+        if (callable == null) return null;
+        return doWithSession(sessionFactoryName, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return callable.call(new Object[]{sessionFactoryName, session});
+            }
+        });
+    }
+
+    /**
+     * Executes the closure with a session bound to the given tenant. Requires the
+     * SessionFactory to be configured with a {@code multiTenancy} block. Groovy callers
+     * passing a {@code null} tenant must cast it to {@code String}, as it would match the
+     * {@link CancellationHandle} and {@link FetchPlan} variants too.
+     */
+    public <R> R withHibernate4(String sessionFactoryName, String tenantIdentifier, final Closure<R> closure) {
+        if (closure == null) return null;
+        return doWithSession(sessionFactoryName, tenantIdentifier, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return closure.call(sessionFactoryName, session);
+            }
+        });
+    }
+
+    /**
+     * Executes the callable with a session bound to the given tenant. Requires the
+     * SessionFactory to be configured with a {@code multiTenancy} block.
+     */
+    public <R> R withHibernate4(String sessionFactoryName, String tenantIdentifier, final CallableWithArgs<R> callable) {
+        if (callable == null) return null;
+        return doWithSession(sessionFactoryName, tenantIdentifier, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return callable.call(new Object[]{sessionFactoryName, session});
+            }
+        });
+    }
+
+    /**
+     * Executes the closure in a call that may be cancelled through the given handle.
+     */
+    public <R> R withHibernate4(String sessionFactoryName, CancellationHandle handle, final Closure<R> closure) {
+        if (closure == null) return null;
+        return doWithSession(sessionFactoryName, null, handle, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return closure.call(sessionFactoryName, session);
+            }
+        });
+    }
+
+    /**
+     * Executes the callable in a call that may be cancelled through the given handle.
+     */
+    public <R> R withHibernate4(String sessionFactoryName, CancellationHandle handle, final CallableWithArgs<R> callable) {
+        if (callable == null) return null;
+        return doWithSession(sessionFactoryName, null, handle, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return callable.call(new Object[]{sessionFactoryName, session});
+            }
+        });
+    }
+
+    /**
+     * Executes the closure with the given fetch plans enabled on its session.
+     */
+    public <R> R withHibernate4(String sessionFactoryName, FetchPlan fetchPlan, final Closure<R> closure) {
+        if (closure == null) return null;
+        return doWithSession(sessionFactoryName, null, null, fetchPlan, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return closure.call(sessionFactoryName, session);
+            }
+        });
+    }
+
+    /**
+     * Executes the callable with the given fetch plans enabled on its session.
+     */
+    public <R> R withHibernate4(String sessionFactoryName, FetchPlan fetchPlan, final CallableWithArgs<R> callable) {
+        if (callable == null) return null;
+        return doWithSession(sessionFactoryName, null, null, fetchPlan, new SessionCallback<R>() {
+            public R call(String sessionFactoryName, Session session) {
+                return callable.call(new Object[]{sessionFactoryName, session});
+            }
+        });
+    }
+
+    /**
+     * Reads the rows of a native query into primitive column arrays.
+     */
+    public ColumnarResult withColumns(String sessionFactoryName, final ColumnarProjection projection) {
+        return doWithSession(sessionFactoryName, new SessionCallback<ColumnarResult>() {
+            public ColumnarResult call(String sessionFactoryName, Session session) {
+                return projection.execute(session);
+            }
+        });
+    }
+
+    /**
+     * Reads the rows of a native query into primitive column arrays, handing them
+     * to the handler in chunks of up to {@code chunkSize} rows.
+     *
+     * @return the total number of rows read
+     */
+    public long withColumns(String sessionFactoryName, final ColumnarProjection projection, final int chunkSize, final ColumnarHandler handler) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be greater than 0");
+        return doWithSession(sessionFactoryName, new SessionCallback<Long>() {
+            public Long call(String sessionFactoryName, Session session) {
+                return projection.stream(session, chunkSize, handler);
+            }
+        });
+    }
+
+    /**
+     * Runs a bulk update or delete in chunks of keys, each chunk in a transaction of its own.
+     *
+     * @return the number of rows affected
+     */
+    public long withBulkOperation(String sessionFactoryName, BulkOperation operation) {
+        return operation.execute(this, sessionFactoryName);
+    }
+
+    /**
+     * Reads a query in partitions of keys, each partition on its own session, and folds
+     * them with the given combiner.
+     */
+    public <P, R> R withPartitions(String sessionFactoryName, PartitionedQuery query, PartitionCombiner<P, R> combiner) {
+        return query.execute(this, sessionFactoryName, combiner);
+    }
+
+    /**
+     * Streams a {@code java.sql.Blob} property of an entity to the given channel.
+     *
+     * @return the number of bytes read
+     */
+    public long readBlob(String sessionFactoryName, final Class<?> entityClass, final Serializable id, final String property, final WritableByteChannel target) {
+        return doWithSession(sessionFactoryName, new SessionCallback<Long>() {
+            public Long call(String sessionFactoryName, Session session) {
+                Object value = getLobProperty(session, entityClass, id, property);
+                if (value == null) return 0L;
+                if (!(value instanceof Blob)) {
+                    throw new IllegalArgumentException("Property " + entityClass.getName() + "." + property + " is not mapped as java.sql.Blob");
+                }
+                return Hibernate4Lobs.copy((Blob) value, target);
+            }
+        });
+    }
+
+    public long readBlob(String sessionFactoryName, Class<?> entityClass, Serializable id, String property, OutputStream target) {
+        return readBlob(sessionFactoryName, entityClass, id, property, Channels.newChannel(target));
+    }
+
+    /**
+     * Replaces a {@code java.sql.Blob} property of an entity with {@code length} bytes read from the given channel.
+     */
+    public void writeBlob(String sessionFactoryName, final Class<?> entityClass, final Serializable id, final String property, final ReadableByteChannel source, final long length) {
+        doWithSession(sessionFactoryName, new SessionCallback<Object>() {
+            public Object call(String sessionFactoryName, Session session) {
+                setLobProperty(session, entityClass, id, property, Hibernate4Lobs.createBlob(session, source, length));
+                return null;
+            }
+        });
+    }
+
+    public void writeBlob(String sessionFactoryName, Class<?> entityClass, Serializable id, String property, InputStream source, long length) {
+        writeBlob(sessionFactoryName, entityClass, id, property, Channels.newChannel(source), length);
+    }
+
+    /**
+     * Streams a {@code java.sql.Clob} property of an entity to the given writer.
+     *
+     * @return the number of characters read
+     */
+    public long readClob(String sessionFactoryName, final Class<?> entityClass, final Serializable id, final String property, final Writer target) {
+        return doWithSession(sessionFactoryName, new SessionCallback<Long>() {
+            public Long call(String sessionFactoryName, Session session) {
+                Object value = getLobProperty(session, entityClass, id, property);
+                if (value == null) return 0L;
+                if (!(value instanceof Clob)) {
+                    throw new IllegalArgumentException("Property " + entityClass.getName() + "." + property + " is not mapped as java.sql.Clob");
+                }
+                return Hibernate4Lobs.copy((Clob) value, target);
+            }
+        });
+    }
+
+    /**
+     * Replaces a {@code java.sql.Clob} property of an entity with {@code length} characters read from the given reader.
+     */
+    public void writeClob(String sessionFactoryName, final Class<?> entityClass, final Serializable id, final String property, final Reader source, final long length) {
+        doWithSession(sessionFactoryName, new SessionCallback<Object>() {
+            public Object call(String sessionFactoryName, Session session) {
+                setLobProperty(session, entityClass, id, property, Hibernate4Lobs.createClob(session, source, length));
+                return null;
+            }
+        });
+    }
+
+    protected <R> R doWithSession(String sessionFactoryName, SessionCallback<R> callback) {
+        return doWithSession(sessionFactoryName, null, callback);
+    }
+
+    protected <R> R doWithSession(String sessionFactoryName, String tenantIdentifier, SessionCallback<R> callback) {
+        return doWithSession(sessionFactoryName, tenantIdentifier, null, callback);
+    }
+
+    protected <R> R doWithSession(String sessionFactoryName, String tenantIdentifier, CancellationHandle handle, SessionCallback<R> callback) {
+        return doWithSession(sessionFactoryName, tenantIdentifier, handle, null, callback);
+    }
+
+    protected <R> R doWithSession(String sessionFactoryName, String tenantIdentifier, CancellationHandle handle, FetchPlan fetchPlan, SessionCallback<R> callback) {
         if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
-        if (callable != null) {
+        if (handle != null) handle.checkCancelled();
+        Hibernate4Bulkhead bulkhead = bulkheads.get(sessionFactoryName);
+        if (bulkhead != null) bulkhead.acquire();
+        try {
             SessionFactory sf = getSessionFactory(sessionFactoryName);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Executing statements on session '" + sessionFactoryName + "'");
-            }
-            Session session = sf.openSession();
             try {
-                session.beginTransaction();
-                return callable.call(new Object[]{sessionFactoryName, session});
-            } finally {
-                if (!session.getTransaction().wasRolledBack()) {
-                    session.getTransaction().commit();
+                if (fetchPlan != null) checkFetchPlan(sessionFactoryName, sf, fetchPlan);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Executing statements on session '" + sessionFactoryName + "'");
                 }
-                session.close();
+                Session session = openSession(sf, tenantIdentifier);
+                Hibernate4Watchdog watchdog = watchdogs.get(sessionFactoryName);
+                Hibernate4Watchdog.OpenSession tracked = watchdog != null ? watchdog.open(session) : null;
+                Hibernate4SessionGuard guard = sessionGuards.get(sessionFactoryName);
+                if (guard != null) guard.attach(session);
+                try {
+                    if (handle != null) {
+                        handle.bind(session);
+                        if (handle.getTimeout() > 0) session.getTransaction().setTimeout(handle.getTimeout());
+                    }
+                    if (fetchPlan != null) {
+                        for (String name : fetchPlan.getNames()) session.enableFetchProfile(name);
+                    }
+                    session.beginTransaction();
+                    R result = callback.call(sessionFactoryName, session);
+                    if (handle != null) handle.checkCancelled();
+                    return result;
+                } catch (RuntimeException e) {
+                    if (handle == null || !handle.isCancelled() || e instanceof CancellationException) throw e;
+                    // the driver reports the cancelled statement as a failure of its own
+                    CancellationException cancelled = new CancellationException("Hibernate4 call on '" + sessionFactoryName + "' was cancelled");
+                    cancelled.initCause(e);
+                    throw cancelled;
+                } finally {
+                    try {
+                        if (guard != null) guard.detach(session);
+                        if (handle != null) handle.unbind(session);
+                        // the transaction has not begun when binding the handle or enabling fetch plans failed
+                        if (session.getTransaction().isActive()) {
+                            if (handle != null && handle.isCancelled()) {
+                                session.getTransaction().rollback();
+                            } else {
+                                session.getTransaction().commit();
+                            }
+                        }
+                    } finally {
+                        // a failed commit must not leave the session, and its connection, behind
+                        try {
+                            session.close();
+                        } finally {
+                            if (tracked != null) watchdog.close(tracked);
+                        }
+                    }
+                }
+            } finally {
+                releaseSessionFactory(sessionFactoryName, sf);
             }
+        } finally {
+            if (bulkhead != null) bulkhead.release();
+        }
+    }
+
+    private static void checkFetchPlan(String sessionFactoryName, SessionFactory sessionFactory, FetchPlan fetchPlan) {
+        for (String name : fetchPlan.getNames()) {
+            if (!sessionFactory.containsFetchProfileDefinition(name)) {
+                throw new IllegalArgumentException("Unknown fetch plan '" + name + "' for SessionFactory '" + sessionFactoryName + "'");
+            }
+        }
+    }
+
+    /**
+     * Limits concurrent access to the given SessionFactory. A {@code null} value
+     * removes any previous limit.
+     */
+    public void setBulkhead(String sessionFactoryName, Hibernate4Bulkhead bulkhead) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        if (bulkhead == null) {
+            bulkheads.remove(sessionFactoryName);
+        } else {
+            bulkheads.put(sessionFactoryName, bulkhead);
         }
-        return null;
+    }
+
+    public Hibernate4Bulkhead getBulkhead(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        return bulkheads.get(sessionFactoryName);
+    }
+
+    /**
+     * Tracks the sessions opened for the given SessionFactory. A {@code null} value
+     * stops tracking them.
+     */
+    public void setWatchdog(String sessionFactoryName, Hibernate4Watchdog watchdog) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        Hibernate4Watchdog previous = watchdog == null ? watchdogs.remove(sessionFactoryName) : watchdogs.put(sessionFactoryName, watchdog);
+        if (previous != null && previous != watchdog) previous.stop();
+    }
+
+    public Hibernate4Watchdog getWatchdog(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        return watchdogs.get(sessionFactoryName);
+    }
+
+    private static Object getLobProperty(Session session, Class<?> entityClass, Serializable id, String property) {
+        Object entity = session.get(entityClass, id);
+        if (entity == null) throw new ObjectNotFoundException(id, entityClass.getName());
+        return session.getSessionFactory().getClassMetadata(entityClass).getPropertyValue(entity, property);
+    }
+
+    private static void setLobProperty(Session session, Class<?> entityClass, Serializable id, String property, Object value) {
+        Object entity = session.get(entityClass, id);
+        if (entity == null) throw new ObjectNotFoundException(id, entityClass.getName());
+        session.getSessionFactory().getClassMetadata(entityClass).setPropertyValue(entity, property, value);
+    }
+
+    /**
+     * Bounds the persistence context of the sessions opened for the given SessionFactory.
+     * A {@code null} value removes any previous guard. The SessionFactory must have been
+     * configured with a {@code sessionGuard} block for the guard to be applied.
+     */
+    public void setSessionGuard(String sessionFactoryName, Hibernate4SessionGuard guard) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        if (guard == null) {
+            sessionGuards.remove(sessionFactoryName);
+        } else {
+            sessionGuards.put(sessionFactoryName, guard);
+        }
+    }
+
+    public Hibernate4SessionGuard getSessionGuard(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT;
+        return sessionGuards.get(sessionFactoryName);
+    }
+
+    protected Session openSession(SessionFactory sessionFactory, String tenantIdentifier) {
+        if (isBlank(tenantIdentifier)) return sessionFactory.openSession();
+        return sessionFactory.withOptions().tenantIdentifier(tenantIdentifier).openSession();
     }
 
     protected abstract SessionFactory getSessionFactory(String sessionFactoryName);
-}
\ No newline at end of file
+
+    /**
+     * Invoked once the work started with a SessionFactory obtained from
+     * {@link #getSessionFactory(String)} has finished.
+     *
+     * @param sessionFactoryName the name of the SessionFactory
+     * @param sessionFactory     the SessionFactory that was used
+     */
+    protected void releaseSessionFactory(String sessionFactoryName, SessionFactory sessionFactory) {
+    }
+
+    protected interface SessionCallback<R> {
+        R call(String sessionFactoryName, Session session);
+    }
+}
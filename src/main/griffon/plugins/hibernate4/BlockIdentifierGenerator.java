@@ -0,0 +1,338 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.JdbcUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.jdbc.connections.spi.MultiTenantConnectionProvider;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Hands out identifiers from blocks reserved in the database, without locking and
+ * without a database round trip per identifier.</p>
+ * <p>Every block holds {@code block_size} identifiers. Block {@code n} covers the identifiers
+ * from {@code n * block_size} to {@code (n + 1) * block_size - 1}, where {@code n} is read
+ * from a sequence with an increment of 1 when {@code sequence_name} is given, or from a row
+ * of the {@code table_name} table otherwise. Blocks are reserved on a connection of their
+ * own; once no more than {@code prefetch_threshold} identifiers remain in the current block
+ * the next block is reserved in the background.</p>
+ * <pre>
+ * &#64;Id
+ * &#64;GeneratedValue(generator = "blocks")
+ * &#64;GenericGenerator(name = "blocks", strategy = "griffon.plugins.hibernate4.BlockIdentifierGenerator",
+ *     parameters = &#64;Parameter(name = "block_size", value = "1000"))
+ * private Long id;
+ * </pre>
+ * Identifiers of blocks that are not used up, e.g, when the application exits, are skipped.
+ * With multi-tenancy blocks are reserved on a connection that is not bound to any tenant.
+ *
+ * @author Andres Almiray
+ */
+public class BlockIdentifierGenerator implements PersistentIdentifierGenerator, Configurable {
+    private static final Logger LOG = LoggerFactory.getLogger(BlockIdentifierGenerator.class);
+    private static final ExecutorService PREFETCHER = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "hibernate4-id-blocks");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static final String SEQUENCE_NAME = "sequence_name";
+    public static final String TABLE_NAME = "table_name";
+    public static final String SEGMENT_VALUE = "segment_value";
+    public static final String BLOCK_SIZE = "block_size";
+    public static final String PREFETCH_THRESHOLD = "prefetch_threshold";
+    public static final String DEFAULT_TABLE_NAME = "HIBERNATE4_ID_BLOCKS";
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    private static final Block EXHAUSTED = new Block(0, 0, 0);
+
+    private final AtomicReference<Block> current = new AtomicReference<Block>(EXHAUSTED);
+    private final AtomicReference<Future<Block>> next = new AtomicReference<Future<Block>>();
+    private volatile ConnectionProvider connectionProvider;
+    private volatile MultiTenantConnectionProvider multiTenantConnectionProvider;
+
+    private Dialect dialect;
+    private Class<?> returnedClass;
+    private String sequenceName;
+    private String tableName;
+    private String segmentValue;
+    private int blockSize;
+    private int prefetchThreshold;
+
+    public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+        this.dialect = dialect;
+        this.returnedClass = type.getReturnedClass();
+        this.sequenceName = ConfigurationHelper.getString(SEQUENCE_NAME, params);
+        this.tableName = ConfigurationHelper.getString(TABLE_NAME, params, DEFAULT_TABLE_NAME);
+        this.segmentValue = ConfigurationHelper.getString(SEGMENT_VALUE, params, params.getProperty(TABLE));
+        this.blockSize = ConfigurationHelper.getInt(BLOCK_SIZE, params, DEFAULT_BLOCK_SIZE);
+        this.prefetchThreshold = ConfigurationHelper.getInt(PREFETCH_THRESHOLD, params, blockSize / 2);
+        if (blockSize <= 0) throw new MappingException("block_size must be greater than 0");
+        if (sequenceName != null && !dialect.supportsSequences()) {
+            throw new MappingException("Dialect " + dialect + " does not support sequences");
+        }
+        if (sequenceName == null && segmentValue == null) {
+            throw new MappingException("segment_value is required when the generator is not bound to a table");
+        }
+    }
+
+    public Serializable generate(SessionImplementor session, Object object) throws HibernateException {
+        if (connectionProvider == null && multiTenantConnectionProvider == null) resolveConnections(session);
+        while (true) {
+            Block block = current.get();
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                // exactly one caller sees the threshold being crossed
+                if (id == block.prefetchAt) prefetch();
+                return toIdentifier(id);
+            }
+            advance(block);
+        }
+    }
+
+    private void resolveConnections(SessionImplementor session) {
+        ServiceRegistry services = session.getFactory().getServiceRegistry();
+        // multi-tenant factories have no ConnectionProvider
+        MultiTenantConnectionProvider multiTenant = services.getService(MultiTenantConnectionProvider.class);
+        if (multiTenant != null) {
+            multiTenantConnectionProvider = multiTenant;
+            return;
+        }
+        ConnectionProvider provider = services.getService(ConnectionProvider.class);
+        if (provider == null) {
+            throw new HibernateException("No ConnectionProvider is available to reserve identifiers for " + generatorKey());
+        }
+        connectionProvider = provider;
+    }
+
+    private Connection openConnection() throws SQLException {
+        return multiTenantConnectionProvider != null ? multiTenantConnectionProvider.getAnyConnection() : connectionProvider.getConnection();
+    }
+
+    private void closeConnection(Connection connection) throws SQLException {
+        if (multiTenantConnectionProvider != null) {
+            multiTenantConnectionProvider.releaseAnyConnection(connection);
+        } else {
+            connectionProvider.closeConnection(connection);
+        }
+    }
+
+    private void prefetch() {
+        FutureTask<Block> task = newReservation();
+        if (next.compareAndSet(null, task)) PREFETCHER.execute(task);
+    }
+
+    private void advance(Block exhausted) {
+        Future<Block> reservation = next.get();
+        if (reservation == null) {
+            FutureTask<Block> task = newReservation();
+            if (next.compareAndSet(null, task)) task.run();
+            return;
+        }
+        Block block;
+        try {
+            block = reservation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Interrupted while reserving identifiers", e);
+        } catch (ExecutionException e) {
+            next.compareAndSet(reservation, null);
+            throw new HibernateException("Could not reserve identifiers", e.getCause());
+        }
+        // the caller that takes the reservation is the only one allowed to publish it
+        if (!next.compareAndSet(reservation, null)) return;
+        if (!current.compareAndSet(exhausted, block) && !next.compareAndSet(null, new CompletedReservation(block))) {
+            LOG.debug("Skipping identifiers " + block.start + " to " + (block.end - 1));
+        }
+    }
+
+    private FutureTask<Block> newReservation() {
+        return new FutureTask<Block>(new Callable<Block>() {
+            public Block call() throws SQLException {
+                long n = sequenceName != null ? nextFromSequence() : nextFromTable();
+                long start = Math.max(1L, n * blockSize);
+                long end = (n + 1) * blockSize;
+                return new Block(start, end, Math.max(start, end - 1 - prefetchThreshold));
+            }
+        });
+    }
+
+    private long nextFromSequence() throws SQLException {
+        Connection connection = openConnection();
+        PreparedStatement statement = null;
+        ResultSet rs = null;
+        try {
+            statement = connection.prepareStatement(dialect.getSequenceNextValString(sequenceName));
+            rs = statement.executeQuery();
+            if (!rs.next()) throw new SQLException("Sequence " + sequenceName + " returned no value");
+            return rs.getLong(1);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+            closeConnection(connection);
+        }
+    }
+
+    private long nextFromTable() throws SQLException {
+        Connection connection = openConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            while (true) {
+                Long n = readBlock(connection);
+                boolean reserved = n == null ? insertBlock(connection) : updateBlock(connection, n);
+                if (reserved) {
+                    connection.commit();
+                    return n == null ? 0L : n;
+                }
+                // another process reserved the same block; try again with the next one
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            closeConnection(connection);
+        }
+    }
+
+    private Long readBlock(Connection connection) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("select NEXT_BLOCK from " + tableName + " where NAME = ?");
+        ResultSet rs = null;
+        try {
+            statement.setString(1, segmentValue);
+            rs = statement.executeQuery();
+            return rs.next() ? rs.getLong(1) : null;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private boolean insertBlock(Connection connection) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("insert into " + tableName + " (NAME, NEXT_BLOCK) values (?, 1)");
+        try {
+            statement.setString(1, segmentValue);
+            statement.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            // a concurrent insert of the same row violates the primary key; anything else is a failure
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) return false;
+            throw e;
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private boolean updateBlock(Connection connection, long n) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("update " + tableName + " set NEXT_BLOCK = ? where NAME = ? and NEXT_BLOCK = ?");
+        try {
+            statement.setLong(1, n + 1);
+            statement.setString(2, segmentValue);
+            statement.setLong(3, n);
+            return statement.executeUpdate() == 1;
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private Serializable toIdentifier(long id) {
+        if (returnedClass == Integer.class) return (int) id;
+        if (returnedClass == Short.class) return (short) id;
+        return id;
+    }
+
+    public String[] sqlCreateStrings(Dialect dialect) throws HibernateException {
+        if (sequenceName != null) return dialect.getCreateSequenceStrings(sequenceName, 1, 1);
+        return new String[]{"create table " + tableName + " (NAME varchar(255) not null, NEXT_BLOCK " +
+            dialect.getTypeName(java.sql.Types.BIGINT) + " not null, primary key (NAME))"};
+    }
+
+    public String[] sqlDropStrings(Dialect dialect) throws HibernateException {
+        if (sequenceName != null) return dialect.getDropSequenceStrings(sequenceName);
+        return new String[]{"drop table " + tableName};
+    }
+
+    public Object generatorKey() {
+        return sequenceName != null ? sequenceName : tableName;
+    }
+
+    private static class Block {
+        private final long start;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong next;
+
+        private Block(long start, long end, long prefetchAt) {
+            this.start = start;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    private static class CompletedReservation implements Future<Block> {
+        private final Block block;
+
+        private CompletedReservation(Block block) {
+            this.block = block;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public Block get() {
+            return block;
+        }
+
+        public Block get(long timeout, TimeUnit unit) {
+            return block;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+/**
+ * Remembers how far a {@link BulkOperation} got, so that an interrupted operation may
+ * resume where it stopped.
+ *
+ * @author Andres Almiray
+ * @see FileBulkCheckpoint
+ */
+public interface BulkCheckpoint {
+    /**
+     * @return the key below which every row was already processed by the named operation,
+     * or {@code null} if it has not run yet
+     */
+    Long load(String operationName);
+
+    /**
+     * Records that every row of the named operation with a key below {@code key} was processed.
+     */
+    void save(String operationName, long key);
+
+    /**
+     * Invoked once the named operation completed.
+     */
+    void clear(String operationName);
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.HqlUtils;
+import griffon.util.CallableWithArgs;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Runs an HQL update or delete in chunks of consecutive keys, every chunk in a short
+ * transaction of its own, so that no transaction holds locks for long.</p>
+ * <pre>
+ * long rows = BulkOperation.forStatement("update Person p set p.active = false where p.lastLogin &lt; :cutoff")
+ *     .param("cutoff", cutoff)
+ *     .key("p.id")
+ *     .chunkSize(5000)
+ *     .parallelism(4)
+ *     .execute(provider, "default");
+ * </pre>
+ * <p>Keys must be numeric. Every chunk starts at the first matching key after the previous
+ * chunk and covers up to {@code chunkSize} keys, so gaps in the keys cost no empty
+ * chunks; with a {@code parallelism} greater than 1 chunks run concurrently, each on its
+ * own session, and only a few more than {@code parallelism} are queued at a time. When a
+ * {@link BulkCheckpoint} is given the operation records the lowest key of the chunks not
+ * yet committed, and running it again resumes from that key. Chunks
+ * after the first failed one may have been committed already and run again on resume,
+ * so statements should be idempotent.</p>
+ *
+ * @author Andres Almiray
+ */
+public class BulkOperation {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkOperation.class);
+    private static final Pattern STATEMENT = Pattern.compile("^\\s*(?:update|delete)\\s+(?:from\\s+)?(\\S+)\\s+(?:as\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHERE = Pattern.compile("\\bwhere\\b", Pattern.CASE_INSENSITIVE);
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("set", "where"));
+    private static final String LOW = "bulkLow";
+    private static final String HIGH = "bulkHigh";
+
+    private final String statement;
+    private final String entityName;
+    private final String alias;
+    private final Map<String, Object> params = new LinkedHashMap<String, Object>();
+    private String key;
+    private int chunkSize = 1000;
+    private int parallelism = 1;
+    private BulkProgressListener listener;
+    private BulkCheckpoint checkpoint;
+    private String operationName;
+
+    private BulkOperation(String statement) {
+        Matcher matcher = STATEMENT.matcher(statement);
+        if (!matcher.find() || KEYWORDS.contains(matcher.group(2).toLowerCase(Locale.ENGLISH))) {
+            throw new IllegalArgumentException("Statement must start with 'update <Entity> <alias>' or 'delete from <Entity> <alias>': " + statement);
+        }
+        this.statement = statement.trim();
+        this.entityName = matcher.group(1);
+        this.alias = matcher.group(2);
+    }
+
+    public static BulkOperation forStatement(String hql) {
+        return new BulkOperation(hql);
+    }
+
+    public BulkOperation param(String name, Object value) {
+        params.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the numeric key the statement is split by, i.e, {@code p.id}. Defaults to the
+     * {@code id} property of the aliased entity.
+     */
+    public BulkOperation key(String key) {
+        this.key = key;
+        return this;
+    }
+
+    public BulkOperation chunkSize(int chunkSize) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be greater than 0");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public BulkOperation parallelism(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be greater than 0");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public BulkOperation progress(BulkProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public BulkOperation checkpoint(String operationName, BulkCheckpoint checkpoint) {
+        if (operationName == null || checkpoint == null) {
+            throw new IllegalArgumentException("Both operationName and checkpoint are required");
+        }
+        this.operationName = operationName;
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * Runs every chunk of this operation against the given SessionFactory.
+     *
+     * @return the number of rows affected
+     */
+    public long execute(final Hibernate4Provider provider, final String sessionFactoryName) {
+        final String keyPath = key != null ? key : alias + ".id";
+        Number[] range = provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Number[]>() {
+            public Number[] call(Object[] args) {
+                return readRange((Session) args[1], keyPath);
+            }
+        });
+        if (range == null) {
+            if (checkpoint != null) checkpoint.clear(operationName);
+            return 0L;
+        }
+
+        long start = range[0].longValue();
+        if (checkpoint != null) {
+            Long resumeAt = checkpoint.load(operationName);
+            if (resumeAt != null && resumeAt > start) {
+                LOG.info("Resuming bulk operation '" + operationName + "' at key " + resumeAt);
+                start = resumeAt;
+            }
+        }
+        long end = range[1].longValue() == Long.MAX_VALUE ? Long.MAX_VALUE : range[1].longValue() + 1;
+        Progress progress = new Progress(start, end, range[0].getClass());
+        if (parallelism == 1) {
+            long[] chunk;
+            while ((chunk = nextChunk(provider, sessionFactoryName, keyPath, progress)) != null) {
+                runChunk(provider, sessionFactoryName, keyPath, progress, chunk[0], chunk[1]);
+            }
+        } else {
+            runParallel(provider, sessionFactoryName, keyPath, progress);
+        }
+        if (checkpoint != null) checkpoint.clear(operationName);
+        return progress.rows.get();
+    }
+
+    private void runParallel(final Hibernate4Provider provider, final String sessionFactoryName, final String keyPath, final Progress progress) {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hibernate4-bulk-" + sessionFactoryName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Void> chunks = new ExecutorCompletionService<Void>(executor);
+        // chunks are submitted as earlier ones complete, so that only a few are queued at any time
+        int window = parallelism * 2;
+        int running = 0;
+        RuntimeException failure = null;
+        try {
+            while (failure == null) {
+                if (running == window) {
+                    failure = awaitChunk(chunks);
+                    running--;
+                    continue;
+                }
+                final long[] chunk = nextChunk(provider, sessionFactoryName, keyPath, progress);
+                if (chunk == null) break;
+                chunks.submit(Hibernate4Bulkhead.sharePermit(provider, sessionFactoryName, new Callable<Void>() {
+                    public Void call() {
+                        runChunk(provider, sessionFactoryName, keyPath, progress, chunk[0], chunk[1]);
+                        return null;
+                    }
+                }));
+                running++;
+            }
+            for (; running > 0; running--) {
+                RuntimeException e = awaitChunk(chunks);
+                if (failure == null) failure = e;
+            }
+            if (failure != null) throw failure;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private RuntimeException awaitChunk(CompletionService<Void> chunks) {
+        try {
+            chunks.take().get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for bulk operation chunks", e);
+        }
+    }
+
+    /*
+     * Seeks the first key at or after the end of the previous chunk, so that gaps in the
+     * keys do not turn into empty chunks.
+     */
+    private long[] nextChunk(Hibernate4Provider provider, String sessionFactoryName, final String keyPath, final Progress progress) {
+        final long from = progress.dispatched();
+        if (from >= progress.end) return null;
+        Long low = provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Long>() {
+            public Long call(Object[] args) {
+                return seek((Session) args[1], keyPath, from, progress.keyClass);
+            }
+        });
+        if (low == null || low >= progress.end) {
+            progress.dispatching(progress.end, progress.end);
+            return null;
+        }
+        long high = progress.end - low <= chunkSize ? progress.end : low + chunkSize;
+        progress.dispatching(low, high);
+        return new long[]{low, high};
+    }
+
+    private void runChunk(Hibernate4Provider provider, String sessionFactoryName, final String keyPath, final Progress progress, final long low, final long high) {
+        Integer rows = provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Integer>() {
+            public Integer call(Object[] args) {
+                Query query = ((Session) args[1]).createQuery(chunkStatement(keyPath));
+                bindParams(query);
+                // the upper bound is inclusive so that it fits the type of the key, even for its largest value
+                query.setParameter(LOW, HqlUtils.toKeyValue(low, progress.keyClass));
+                query.setParameter(HIGH, HqlUtils.toKeyValue(high - 1, progress.keyClass));
+                return query.executeUpdate();
+            }
+        });
+        progress.completed(low, high, rows != null ? rows : 0);
+    }
+
+    private Number[] readRange(Session session, String keyPath) {
+        StringBuilder hql = new StringBuilder("select min(").append(keyPath).append("), max(").append(keyPath)
+            .append(") from ").append(entityName).append(' ').append(alias);
+        String condition = condition();
+        if (condition != null) hql.append(" where (").append(condition).append(')');
+        Query query = session.createQuery(hql.toString());
+        bindParams(query);
+        Object[] result = (Object[]) query.uniqueResult();
+        if (result == null || result[0] == null) return null;
+        return new Number[]{(Number) result[0], (Number) result[1]};
+    }
+
+    private Long seek(Session session, String keyPath, long from, Class<?> keyClass) {
+        StringBuilder hql = new StringBuilder("select min(").append(keyPath).append(") from ")
+            .append(entityName).append(' ').append(alias).append(" where ");
+        String condition = condition();
+        if (condition != null) hql.append('(').append(condition).append(") and ");
+        Query query = session.createQuery(hql.append(keyPath).append(" >= :").append(LOW).toString());
+        bindParams(query);
+        query.setParameter(LOW, HqlUtils.toKeyValue(from, keyClass));
+        Number result = (Number) query.uniqueResult();
+        return result != null ? result.longValue() : null;
+    }
+
+    private String chunkStatement(String keyPath) {
+        StringBuilder hql = new StringBuilder();
+        Matcher where = WHERE.matcher(statement);
+        if (where.find()) {
+            // keep the caller's condition intact, e.g, 'a = 1 or b = 2'
+            hql.append(statement.substring(0, where.end())).append(" (").append(statement.substring(where.end()).trim()).append(") and ");
+        } else {
+            hql.append(statement).append(" where ");
+        }
+        return hql.append(keyPath).append(" >= :").append(LOW).append(" and ")
+            .append(keyPath).append(" <= :").append(HIGH).toString();
+    }
+
+    private String condition() {
+        Matcher where = WHERE.matcher(statement);
+        return where.find() ? statement.substring(where.end()).trim() : null;
+    }
+
+    private void bindParams(Query query) {
+        // the range query does not carry the parameters of the set clause
+        Set<String> names = new HashSet<String>(Arrays.asList(query.getNamedParameters()));
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            if (!names.contains(param.getKey())) continue;
+            if (param.getValue() instanceof Collection) {
+                query.setParameterList(param.getKey(), (Collection<?>) param.getValue());
+            } else {
+                query.setParameter(param.getKey(), param.getValue());
+            }
+        }
+    }
+
+    private class Progress {
+        private final long end;
+        private final Class<?> keyClass;
+        private final long maxChunks;
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong completedChunks = new AtomicLong();
+        // lower keys of the chunks running, the lowest one is the checkpoint
+        private final SortedSet<Long> running = new TreeSet<Long>();
+        private long dispatched;
+        private long saved;
+
+        private Progress(long start, long end, Class<?> keyClass) {
+            this.end = end;
+            this.keyClass = keyClass;
+            long span = end - start;
+            // a span that overflows is only possible with negative keys
+            this.maxChunks = start >= end ? 0L : span < 0L ? Long.MAX_VALUE : (span - 1) / chunkSize + 1;
+            this.dispatched = start;
+            this.saved = start;
+        }
+
+        private synchronized long dispatched() {
+            return dispatched;
+        }
+
+        private synchronized void dispatching(long low, long high) {
+            if (low < high) running.add(low);
+            dispatched = high;
+        }
+
+        private void completed(long low, long high, int chunkRows) {
+            long totalRows = rows.addAndGet(chunkRows);
+            long completed = completedChunks.incrementAndGet();
+            synchronized (this) {
+                running.remove(low);
+                long watermark = running.isEmpty() ? dispatched : running.first();
+                // saved while holding the lock so that checkpoints never move backwards
+                if (checkpoint != null && watermark > saved) {
+                    checkpoint.save(operationName, watermark);
+                    saved = watermark;
+                }
+            }
+            if (listener != null) listener.chunkCompleted(low, high, chunkRows, totalRows, completed, maxChunks);
+        }
+    }
+}
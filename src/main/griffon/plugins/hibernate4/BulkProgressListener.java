@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+/**
+ * Receives progress notifications from a {@link BulkOperation}. Notifications may arrive
+ * from several threads at once when chunks run in parallel.
+ *
+ * @author Andres Almiray
+ */
+public interface BulkProgressListener {
+    /**
+     * Invoked after the chunk covering keys from {@code low} (inclusive) to {@code high}
+     * (exclusive) has been committed.
+     *
+     * @param rows            rows affected by the chunk
+     * @param totalRows       rows affected so far
+     * @param completedChunks chunks committed so far
+     * @param maxChunks       chunks to run at most; fewer run when keys have gaps
+     */
+    void chunkCompleted(long low, long high, int rows, long totalRows, long completedChunks, long maxChunks);
+}
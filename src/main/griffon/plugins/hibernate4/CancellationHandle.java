@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * <p>Allows a {@code withHibernate4} call to be abandoned from another thread, for example
+ * when the user navigates away from a slow search.</p>
+ * <p>Cancelling cancels the statement currently executing. The cancelled call then fails
+ * with a {@code CancellationException} on its own thread, which rolls back the transaction
+ * and closes the session, returning its connection to the pool. Calls that have not started yet fail right away without
+ * acquiring a connection. Long running blocks that issue many statements may call
+ * {@link #checkCancelled()} between them.</p>
+ * <p>An optional timeout, in seconds, applies to every statement executed by the call.</p>
+ * <p>A handle may be used by a single call at a time.</p>
+ *
+ * @author Andres Almiray
+ */
+public class CancellationHandle {
+    private static final Logger LOG = LoggerFactory.getLogger(CancellationHandle.class);
+
+    private final int timeout;
+    private volatile boolean cancelled;
+    private Session session;
+
+    public CancellationHandle() {
+        this(-1);
+    }
+
+    /**
+     * @param timeout statement timeout in seconds; zero or negative values disable it
+     */
+    public CancellationHandle(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels the call bound to this handle, if any.
+     *
+     * @return {@code false} if the handle was already cancelled
+     */
+    public synchronized boolean cancel() {
+        if (cancelled) return false;
+        cancelled = true;
+        if (session != null) {
+            try {
+                session.cancelQuery();
+            } catch (HibernateException e) {
+                // the statement may have completed in the meantime
+                LOG.debug("Could not cancel running query", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws CancellationException if this handle has been cancelled
+     */
+    public void checkCancelled() {
+        if (cancelled) throw new CancellationException("Hibernate4 call was cancelled");
+    }
+
+    synchronized void bind(Session session) {
+        if (this.session != null) {
+            throw new IllegalStateException("CancellationHandle is already bound to a running call");
+        }
+        checkCancelled();
+        this.session = session;
+    }
+
+    synchronized void unbind(Session session) {
+        if (this.session == session) this.session = null;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.JdbcUtils;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Describes a native SQL query whose columns are read straight into primitive
+ * arrays, skipping the {@code Object[]} rows and boxed values Hibernate would create.</p>
+ * <p>Columns must be declared in the same order as they appear in the select clause</p>
+ * <pre>
+ * ColumnarProjection projection = new ColumnarProjection("SELECT id, created, amount FROM sale WHERE region = ?")
+ *     .param("EU")
+ *     .longColumn()
+ *     .timestampColumn()
+ *     .doubleColumn();
+ * </pre>
+ *
+ * @author Andres Almiray
+ * @see ColumnarResult
+ */
+public class ColumnarProjection {
+    public enum Type {
+        /** integral values read with {@code ResultSet.getLong} */
+        LONG,
+        /** floating point or decimal values read with {@code ResultSet.getDouble} */
+        DOUBLE,
+        /** timestamps stored as milliseconds since the epoch */
+        TIMESTAMP
+    }
+
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private final String sql;
+    private final List<Object> params = new ArrayList<Object>();
+    private final List<Type> types = new ArrayList<Type>();
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    public ColumnarProjection(String sql) {
+        this.sql = sql;
+    }
+
+    public ColumnarProjection param(Object value) {
+        params.add(value);
+        return this;
+    }
+
+    public ColumnarProjection longColumn() {
+        return column(Type.LONG);
+    }
+
+    public ColumnarProjection doubleColumn() {
+        return column(Type.DOUBLE);
+    }
+
+    public ColumnarProjection timestampColumn() {
+        return column(Type.TIMESTAMP);
+    }
+
+    public ColumnarProjection column(Type type) {
+        types.add(type);
+        return this;
+    }
+
+    public ColumnarProjection fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+        return this;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<Type> getTypes() {
+        return Collections.unmodifiableList(types);
+    }
+
+    /**
+     * Reads all rows into a single result.
+     */
+    public ColumnarResult execute(Session session) {
+        final ColumnarResult result = new ColumnarResult(types.toArray(new Type[types.size()]), fetchSize);
+        run(session, new RowSink() {
+            public void append(ResultSet rs) throws SQLException {
+                result.append(rs);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads rows in chunks of up to {@code chunkSize} rows and hands every chunk to the
+     * handler. The same chunk instance is cleared and reused between calls, hence handlers
+     * must not keep references to it nor to its arrays.
+     *
+     * @return the total number of rows read
+     */
+    public long stream(Session session, final int chunkSize, final ColumnarHandler handler) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be greater than 0");
+        final ColumnarResult chunk = new ColumnarResult(types.toArray(new Type[types.size()]), chunkSize);
+        final long[] total = new long[1];
+        run(session, new RowSink() {
+            public void append(ResultSet rs) throws SQLException {
+                chunk.append(rs);
+                if (chunk.size() == chunkSize) flush();
+            }
+
+            public void done() {
+                if (chunk.size() > 0) flush();
+            }
+
+            private void flush() {
+                total[0] += chunk.size();
+                handler.handle(chunk);
+                chunk.clear();
+            }
+        });
+        return total[0];
+    }
+
+    private void run(Session session, final RowSink sink) {
+        session.doReturningWork(new ReturningWork<Void>() {
+            public Void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = null;
+                ResultSet rs = null;
+                try {
+                    statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    statement.setFetchSize(fetchSize);
+                    for (int i = 0; i < params.size(); i++) {
+                        statement.setObject(i + 1, params.get(i));
+                    }
+                    rs = statement.executeQuery();
+                    if (rs.getMetaData().getColumnCount() < types.size()) {
+                        throw new SQLException("Query returns fewer columns than the " + types.size() + " declared");
+                    }
+                    while (rs.next()) {
+                        sink.append(rs);
+                    }
+                    sink.done();
+                    return null;
+                } finally {
+                    JdbcUtils.closeResultSet(rs);
+                    JdbcUtils.closeStatement(statement);
+                }
+            }
+        });
+    }
+
+    private static abstract class RowSink {
+        abstract void append(ResultSet rs) throws SQLException;
+
+        void done() {
+        }
+    }
+}
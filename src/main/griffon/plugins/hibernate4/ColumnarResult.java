@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * <p>Rows read by a {@link ColumnarProjection}, stored column by column in growable
+ * {@code long[]} and {@code double[]} arrays. {@code LONG} and {@code TIMESTAMP} columns
+ * are backed by {@code long[]}, {@code DOUBLE} columns by {@code double[]}.</p>
+ * <p>The arrays returned by {@link #getLongs(int)} and {@link #getDoubles(int)} are the
+ * backing arrays themselves; only the first {@link #size()} elements are valid. SQL
+ * {@code NULL} values are stored as 0 and reported by {@link #isNull(int, int)}.</p>
+ *
+ * @author Andres Almiray
+ */
+public class ColumnarResult {
+    private final ColumnarProjection.Type[] types;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final BitSet[] nulls;
+    private int size;
+
+    ColumnarResult(ColumnarProjection.Type[] types, int initialCapacity) {
+        this.types = types;
+        this.longs = new long[types.length][];
+        this.doubles = new double[types.length][];
+        this.nulls = new BitSet[types.length];
+        int capacity = Math.max(16, initialCapacity);
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == ColumnarProjection.Type.DOUBLE) {
+                doubles[i] = new double[capacity];
+            } else {
+                longs[i] = new long[capacity];
+            }
+            nulls[i] = new BitSet();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getColumnCount() {
+        return types.length;
+    }
+
+    public ColumnarProjection.Type getType(int column) {
+        return types[column];
+    }
+
+    public long[] getLongs(int column) {
+        if (longs[column] == null) {
+            throw new IllegalArgumentException("Column " + column + " is of type " + types[column]);
+        }
+        return longs[column];
+    }
+
+    public double[] getDoubles(int column) {
+        if (doubles[column] == null) {
+            throw new IllegalArgumentException("Column " + column + " is of type " + types[column]);
+        }
+        return doubles[column];
+    }
+
+    public long getLong(int row, int column) {
+        checkRow(row);
+        return getLongs(column)[row];
+    }
+
+    public double getDouble(int row, int column) {
+        checkRow(row);
+        return getDoubles(column)[row];
+    }
+
+    public boolean isNull(int row, int column) {
+        checkRow(row);
+        return nulls[column].get(row);
+    }
+
+    /**
+     * @return a copy of the valid portion of a {@code LONG} or {@code TIMESTAMP} column
+     */
+    public long[] toLongArray(int column) {
+        return Arrays.copyOf(getLongs(column), size);
+    }
+
+    /**
+     * @return a copy of the valid portion of a {@code DOUBLE} column
+     */
+    public double[] toDoubleArray(int column) {
+        return Arrays.copyOf(getDoubles(column), size);
+    }
+
+    void append(ResultSet rs) throws SQLException {
+        ensureCapacity(size + 1);
+        for (int i = 0; i < types.length; i++) {
+            int index = i + 1;
+            switch (types[i]) {
+                case LONG:
+                    longs[i][size] = rs.getLong(index);
+                    if (rs.wasNull()) nulls[i].set(size);
+                    break;
+                case DOUBLE:
+                    doubles[i][size] = rs.getDouble(index);
+                    if (rs.wasNull()) nulls[i].set(size);
+                    break;
+                case TIMESTAMP:
+                    Timestamp timestamp = rs.getTimestamp(index);
+                    if (timestamp == null) {
+                        longs[i][size] = 0L;
+                        nulls[i].set(size);
+                    } else {
+                        longs[i][size] = timestamp.getTime();
+                    }
+                    break;
+            }
+        }
+        size++;
+    }
+
+    void clear() {
+        for (BitSet columnNulls : nulls) {
+            columnNulls.clear();
+        }
+        size = 0;
+    }
+
+    private void ensureCapacity(int required) {
+        for (int i = 0; i < types.length; i++) {
+            if (longs[i] != null && longs[i].length < required) {
+                longs[i] = Arrays.copyOf(longs[i], Math.max(required, longs[i].length * 2));
+            } else if (doubles[i] != null && doubles[i].length < required) {
+                doubles[i] = Arrays.copyOf(doubles[i], Math.max(required, doubles[i].length * 2));
+            }
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of bounds [0, " + size + ")");
+        }
+    }
+}
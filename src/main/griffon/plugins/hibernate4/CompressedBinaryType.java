@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.HibernateException;
+
+import java.util.Arrays;
+
+/**
+ * <p>Stores {@code byte[]} properties compressed.</p>
+ * <pre>
+ * &lt;property name="document" type="griffon.plugins.hibernate4.CompressedBinaryType"/&gt;
+ * </pre>
+ * See {@link AbstractCompressedType} for the supported parameters.
+ *
+ * @author Andres Almiray
+ */
+public class CompressedBinaryType extends AbstractCompressedType {
+    public Class<?> returnedClass() {
+        return byte[].class;
+    }
+
+    protected byte[] toBytes(Object value) {
+        return (byte[]) value;
+    }
+
+    protected Object fromBytes(byte[] bytes) {
+        return bytes;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+
+    @Override
+    public Object deepCopy(Object value) throws HibernateException {
+        return value != null ? ((byte[]) value).clone() : null;
+    }
+
+    @Override
+    public boolean equals(Object x, Object y) throws HibernateException {
+        return x == y || (x != null && y != null && Arrays.equals((byte[]) x, (byte[]) y));
+    }
+
+    @Override
+    public int hashCode(Object x) throws HibernateException {
+        return Arrays.hashCode((byte[]) x);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>Stores {@code String} properties compressed, encoded as UTF-8.</p>
+ * <pre>
+ * &lt;property name="payload"&gt;
+ *     &lt;type name="griffon.plugins.hibernate4.CompressedStringType"&gt;
+ *         &lt;param name="codec"&gt;deflate&lt;/param&gt;
+ *         &lt;param name="threshold"&gt;1024&lt;/param&gt;
+ *     &lt;/type&gt;
+ * &lt;/property&gt;
+ * </pre>
+ * See {@link AbstractCompressedType} for the supported parameters.
+ *
+ * @author Andres Almiray
+ */
+public class CompressedStringType extends AbstractCompressedType {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public Class<?> returnedClass() {
+        return String.class;
+    }
+
+    protected byte[] toBytes(Object value) {
+        return ((String) value).getBytes(UTF8);
+    }
+
+    protected Object fromBytes(byte[] bytes) {
+        return new String(bytes, UTF8);
+    }
+}
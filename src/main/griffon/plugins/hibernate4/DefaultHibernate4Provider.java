@@ -37,6 +37,11 @@ public class DefaultHibernate4Provider extends AbstractHibernate4Provider {
 
     @Override
     protected SessionFactory getSessionFactory(String sessionFactoryName) {
-        return Hibernate4Holder.getInstance().fetchSessionFactory(sessionFactoryName);
+        return Hibernate4Holder.getInstance().acquireSessionFactory(sessionFactoryName);
+    }
+
+    @Override
+    protected void releaseSessionFactory(String sessionFactoryName, SessionFactory sessionFactory) {
+        Hibernate4Holder.getInstance().releaseSessionFactory(sessionFactory);
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Names the fetch plans to apply to the sessions of a {@code withHibernate4} call.</p>
+ * <p>Fetch plans are declared in {@code Hibernate4Config.groovy} and registered as Hibernate
+ * fetch profiles; fetch profiles declared in mappings may be named as well. Every plan is
+ * enabled on the session before the call's block runs.</p>
+ * <pre>
+ * withHibernate4('default', FetchPlan.of('personDetail')) { sessionFactoryName, session -&gt;
+ *     session.get(Person, id)
+ * }
+ * </pre>
+ *
+ * @author Andres Almiray
+ */
+public final class FetchPlan {
+    private final List<String> names;
+
+    private FetchPlan(String[] names) {
+        this.names = Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    public static FetchPlan of(String... names) {
+        if (names == null || names.length == 0) {
+            throw new IllegalArgumentException("At least one fetch plan must be named");
+        }
+        return new FetchPlan(names.clone());
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return "FetchPlan" + names;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Keeps {@link BulkOperation} checkpoints in a properties file.
+ *
+ * @author Andres Almiray
+ */
+public class FileBulkCheckpoint implements BulkCheckpoint {
+    private final File file;
+
+    public FileBulkCheckpoint(File file) {
+        if (file == null) throw new IllegalArgumentException("file must not be null");
+        this.file = file;
+    }
+
+    public synchronized Long load(String operationName) {
+        String value = read().getProperty(operationName);
+        return value != null ? Long.valueOf(value) : null;
+    }
+
+    public synchronized void save(String operationName, long key) {
+        Properties checkpoints = read();
+        checkpoints.setProperty(operationName, String.valueOf(key));
+        write(checkpoints);
+    }
+
+    public synchronized void clear(String operationName) {
+        Properties checkpoints = read();
+        if (checkpoints.remove(operationName) != null) write(checkpoints);
+    }
+
+    private Properties read() {
+        Properties checkpoints = new Properties();
+        if (!file.exists()) return checkpoints;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                checkpoints.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read checkpoints from " + file, e);
+        }
+        return checkpoints;
+    }
+
+    private void write(Properties checkpoints) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory()) parent.mkdirs();
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                checkpoints.store(out, "Bulk operation checkpoints");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write checkpoints to " + file, e);
+        }
+    }
+}
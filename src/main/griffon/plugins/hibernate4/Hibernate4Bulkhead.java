@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Limits how many callers may work with a SessionFactory at the same time.</p>
+ * <p>Up to {@code maxConcurrent} callers are admitted. Further callers wait in line for
+ * up to {@code acquireTimeout} milliseconds, with at most {@code maxQueued} of them
+ * waiting at any time. When {@code failFast} is set callers are rejected right away
+ * instead of waiting. Rejected callers receive a {@code RejectedExecutionException}.</p>
+ * <p>Permits are held per thread: calls nested within an admitted call on the same thread
+ * are admitted right away.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4Bulkhead {
+    private final String sessionFactoryName;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long acquireTimeout;
+    private final boolean failFast;
+    private final Semaphore permits;
+    private final ThreadLocal<Hold> holds = new ThreadLocal<Hold>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger peakQueued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    public Hibernate4Bulkhead(String sessionFactoryName, int maxConcurrent, int maxQueued, long acquireTimeout, boolean failFast) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be greater than 0");
+        }
+        this.sessionFactoryName = sessionFactoryName;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.acquireTimeout = Math.max(0, acquireTimeout);
+        this.failFast = failFast;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    public void acquire() {
+        Hold hold = holds.get();
+        if (hold != null) {
+            // nested calls run under the permit the thread already holds
+            hold.depth++;
+            return;
+        }
+        if (tryAcquireInTurn()) {
+            admit();
+            return;
+        }
+        if (failFast) {
+            throw reject("no permits available");
+        }
+        int waiting = queued.incrementAndGet();
+        try {
+            if (waiting > maxQueued) {
+                throw reject(maxQueued + " callers already waiting");
+            }
+            updatePeak(waiting);
+            long start = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject("interrupted while waiting");
+            }
+            totalWaitNanos.addAndGet(System.nanoTime() - start);
+            if (!acquired) {
+                timedOut.incrementAndGet();
+                throw reject("timed out after " + acquireTimeout + "ms");
+            }
+            admit();
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Admits the current thread under a permit held by another thread, as returned by
+     * {@link #getHeldPermit()}, without taking a permit of its own. Used by work that is
+     * fanned out from an admitted call and completes before that call does. A {@code null}
+     * permit acquires one as {@link #acquire()} does.
+     */
+    public void acquire(Permit permit) {
+        if (permit == null || holds.get() != null) {
+            acquire();
+            return;
+        }
+        holds.set(new Hold(permit, false));
+    }
+
+    public void release() {
+        Hold hold = holds.get();
+        if (hold == null) {
+            throw new IllegalStateException("SessionFactory '" + sessionFactoryName + "' holds no permit for the current thread");
+        }
+        if (--hold.depth > 0) return;
+        holds.remove();
+        if (hold.owner) permits.release();
+    }
+
+    /**
+     * @return the permit the current thread was admitted with, or {@code null} if it holds none
+     */
+    public Permit getHeldPermit() {
+        Hold hold = holds.get();
+        return hold != null ? hold.permit : null;
+    }
+
+    /**
+     * Wraps work to be fanned out from the current thread so that it runs under the permit
+     * the current thread holds for the given SessionFactory, if any. Other threads would
+     * otherwise wait for permits while the calling thread holds one, possibly the last.
+     * Must be called on the fanning out thread.
+     */
+    static <T> Callable<T> sharePermit(Hibernate4Provider provider, String sessionFactoryName, final Callable<T> work) {
+        final Hibernate4Bulkhead bulkhead = provider instanceof AbstractHibernate4Provider ?
+            ((AbstractHibernate4Provider) provider).getBulkhead(sessionFactoryName) : null;
+        final Permit permit = bulkhead != null ? bulkhead.getHeldPermit() : null;
+        if (permit == null) return work;
+        return new Callable<T>() {
+            public T call() throws Exception {
+                bulkhead.acquire(permit);
+                try {
+                    return work.call();
+                } finally {
+                    bulkhead.release();
+                }
+            }
+        };
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public int getPeakQueuedCount() {
+        return peakQueued.get();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return accumulated time, in milliseconds, callers spent waiting for admission
+     */
+    public long getTotalWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "Hibernate4Bulkhead[" + sessionFactoryName + ": active=" + getActiveCount() + "/" + maxConcurrent +
+            ", queued=" + getQueuedCount() + "/" + maxQueued + ", admitted=" + getAdmittedCount() +
+            ", rejected=" + getRejectedCount() + ", timedOut=" + getTimedOutCount() + "]";
+    }
+
+    private RejectedExecutionException reject(String reason) {
+        rejected.incrementAndGet();
+        return new RejectedExecutionException("SessionFactory '" + sessionFactoryName + "' rejected call: " + reason);
+    }
+
+    private void admit() {
+        admitted.incrementAndGet();
+        holds.set(new Hold(new Permit(), true));
+    }
+
+    private boolean tryAcquireInTurn() {
+        // unlike tryAcquire(), a timed tryAcquire does not get ahead of waiting callers
+        try {
+            return permits.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted while waiting");
+        }
+    }
+
+    private void updatePeak(int waiting) {
+        int peak = peakQueued.get();
+        while (waiting > peak && !peakQueued.compareAndSet(peak, waiting)) {
+            peak = peakQueued.get();
+        }
+    }
+
+    /**
+     * Identifies the admission of a call, so that work fanned out from it may share it.
+     */
+    public static final class Permit {
+        private Permit() {
+        }
+    }
+
+    private static class Hold {
+        private final Permit permit;
+        private final boolean owner;
+        private int depth = 1;
+
+        private Hold(Permit permit, boolean owner) {
+            this.permit = permit;
+            this.owner = owner;
+        }
+    }
+}
@@ -19,12 +19,18 @@ package griffon.plugins.hibernate4
 import griffon.plugins.datasource.DataSourceConnector
 import griffon.plugins.datasource.DataSourceHolder
 import griffon.plugins.hibernate4.internal.HibernateConfigurationHelper
+import griffon.plugins.hibernate4.internal.JdbcUtils
+import org.hibernate.MultiTenancyStrategy
 import org.hibernate.SessionFactory
 import org.hibernate.cfg.Configuration
+import org.hibernate.cfg.Environment
 import griffon.util.ConfigUtils
 import griffon.core.GriffonApplication
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
 
 import javax.sql.DataSource
+import java.util.concurrent.*
 
 /**
  * @author Andres Almiray
@@ -32,6 +38,8 @@ import javax.sql.DataSource
 @Singleton
 final class Hibernate4Connector {
     private static final String DEFAULT = 'default'
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4Connector)
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 10000L
     private bootstrap
 
     ConfigObject createConfig(GriffonApplication app) {
@@ -65,10 +73,16 @@ final class Hibernate4Connector {
 
         config = narrowConfig(config, dataSourceName)
         app.event('Hibernate4ConnectStart', [config, dataSourceName])
-        Configuration configuration = createConfiguration(app, config, dsConfig, dataSourceName)
+        HibernateConfigurationHelper configHelper = createConfigurationHelper(config, dsConfig, dataSourceName)
+        Configuration configuration = createConfiguration(app, configHelper)
         createSchema(dsConfig, dataSourceName, configuration)
-        SessionFactory sessionFactory = configuration.buildSessionFactory()
+        SessionFactory sessionFactory = configHelper.buildSessionFactory(configuration)
         Hibernate4Holder.instance.setSessionFactory(dataSourceName, sessionFactory)
+        Hibernate4Holder.instance.setWriteQueue(dataSourceName, createWriteQueue(app, config, dataSourceName))
+        configureBulkhead(app, config, dataSourceName)
+        configureWatchdog(app, config, dataSourceName)
+        configureSessionGuard(app, config, dataSourceName)
+        Hibernate4Holder.instance.setReplica(dataSourceName, createReplica(app, config, dataSourceName))
         app.event('Hibernate4SessionFactoryCreated', [config, dataSourceName, sessionFactory])
         bootstrap = app.class.classLoader.loadClass('BootstrapHibernate4').newInstance()
         bootstrap.metaClass.app = app
@@ -77,18 +91,98 @@ final class Hibernate4Connector {
         sessionFactory
     }
 
-    void disconnect(GriffonApplication app, String dataSourceName = DEFAULT) {
+    /**
+     * Disconnects the given SessionFactory. With a deadline, in milliseconds since the epoch,
+     * running work is given until then to finish before the SessionFactory is closed anyway.
+     */
+    void disconnect(GriffonApplication app, String dataSourceName = DEFAULT, long deadline = 0L) {
         if (!Hibernate4Holder.instance.isSessionFactoryAvailable(dataSourceName)) return
 
         SessionFactory sessionFactory = Hibernate4Holder.instance.getSessionFactory(dataSourceName)
         app.event('Hibernate4DisconnectStart', [dataSourceName, sessionFactory])
+        Hibernate4Holder.instance.getReplica(dataSourceName)?.stop()
+        Hibernate4Holder.instance.setReplica(dataSourceName, null)
+        Hibernate4WriteQueue writeQueue = Hibernate4Holder.instance.getWriteQueue(dataSourceName)
+        long writeQueueTimeout = (narrowConfig(createConfig(app), dataSourceName).writeBehind.shutdownTimeout ?: 10000L) as long
+        if (deadline > 0L) writeQueueTimeout = Math.max(0L, Math.min(writeQueueTimeout, deadline - System.currentTimeMillis()))
+        writeQueue?.shutdown(writeQueueTimeout)
+        Hibernate4Holder.instance.setWriteQueue(dataSourceName, null)
         resolveHibernate4Provider(app).withHibernate4(dataSourceName) { dsName, session -> bootstrap.destroy(dsName, session) }
-        Hibernate4Holder.instance.disconnectSessionFactory(dataSourceName)
+        Hibernate4Holder.instance.disconnectSessionFactory(dataSourceName, deadline)
+        Hibernate4Provider provider = resolveHibernate4Provider(app)
+        if (provider instanceof AbstractHibernate4Provider) {
+            provider.setBulkhead(dataSourceName, null)
+            provider.setWatchdog(dataSourceName, null)
+            provider.setSessionGuard(dataSourceName, null)
+        }
         app.event('Hibernate4DisconnectEnd', [dataSourceName])
+        JdbcUtils.evictDatabaseMetaDataSnapshot(DataSourceHolder.instance.getDataSource(dataSourceName))
         ConfigObject dsconfig = DataSourceConnector.instance.createConfig(app)
         DataSourceConnector.instance.disconnect(app, dsconfig, dataSourceName)
     }
 
+    /**
+     * Disconnects every registered SessionFactory in parallel. Running work is given up to
+     * {@code griffon.hibernate4.shutdown.timeout} milliseconds to finish; SessionFactories
+     * still disconnecting by then are closed regardless.
+     */
+    void disconnectAll(GriffonApplication app) {
+        String[] sessionFactoryNames = Hibernate4Holder.instance.sessionFactoryNames
+        if (!sessionFactoryNames) return
+
+        long timeout = (app.config.griffon?.hibernate4?.shutdown?.timeout ?: DEFAULT_SHUTDOWN_TIMEOUT) as long
+        long deadline = System.currentTimeMillis() + timeout
+        ExecutorService executor = Executors.newFixedThreadPool(sessionFactoryNames.length, { Runnable r ->
+            Thread thread = new Thread(r, 'hibernate4-shutdown')
+            thread.daemon = true
+            thread
+        } as ThreadFactory)
+        try {
+            Map<String, Future> disconnects = [:]
+            sessionFactoryNames.each { String sessionFactoryName ->
+                disconnects[sessionFactoryName] = executor.submit({ disconnect(app, sessionFactoryName, deadline) } as Callable)
+            }
+            disconnects.each { String sessionFactoryName, Future disconnecting ->
+                try {
+                    // leave room for closing the SessionFactory once the deadline is reached
+                    disconnecting.get(Math.max(0L, deadline - System.currentTimeMillis()) + 1000L, TimeUnit.MILLISECONDS)
+                } catch (TimeoutException e) {
+                    LOG.warn("SessionFactory '$sessionFactoryName' did not disconnect within ${timeout}ms; closing it")
+                    disconnecting.cancel(true)
+                    Hibernate4Holder.instance.disconnectSessionFactory(sessionFactoryName, System.currentTimeMillis())
+                } catch (ExecutionException e) {
+                    LOG.warn("Unexpected error while disconnecting SessionFactory '$sessionFactoryName'", e.cause)
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Builds a new SessionFactory off the calling thread and swaps it with the current one
+     * once ready. Work already running keeps using the previous SessionFactory, which is
+     * closed after it drains. The DataSource is left untouched.
+     */
+    Future<SessionFactory> rebuild(GriffonApplication app, ConfigObject config, String dataSourceName = DEFAULT) {
+        app.execFuture {
+            if (!Hibernate4Holder.instance.isSessionFactoryAvailable(dataSourceName)) {
+                return connect(app, config, dataSourceName)
+            }
+
+            ConfigObject dsConfig = DataSourceConnector.instance.createConfig(app)
+            config = narrowConfig(config, dataSourceName)
+            app.event('Hibernate4RebuildStart', [config, dataSourceName])
+            HibernateConfigurationHelper configHelper = createConfigurationHelper(config, dsConfig, dataSourceName)
+            Configuration configuration = createConfiguration(app, configHelper)
+            createSchema(dsConfig, dataSourceName, configuration, true)
+            SessionFactory sessionFactory = configHelper.buildSessionFactory(configuration)
+            Hibernate4Holder.instance.swapSessionFactory(dataSourceName, sessionFactory)
+            app.event('Hibernate4RebuildEnd', [dataSourceName, sessionFactory])
+            sessionFactory
+        }
+    }
+
     Hibernate4Provider resolveHibernate4Provider(GriffonApplication app) {
         def hibernate4Provider = app.config.hibernate4Provider
         if (hibernate4Provider instanceof Class) {
@@ -101,27 +195,105 @@ final class Hibernate4Connector {
         hibernate4Provider
     }
 
-    private Configuration createConfiguration(GriffonApplication app, ConfigObject config, ConfigObject dsConfig, String dataSourceName) {
+    private Hibernate4WriteQueue createWriteQueue(GriffonApplication app, ConfigObject config, String dataSourceName) {
+        ConfigObject writeBehind = config.writeBehind
+        new Hibernate4WriteQueue(dataSourceName, resolveHibernate4Provider(app),
+            (writeBehind.capacity ?: Hibernate4WriteQueue.DEFAULT_CAPACITY) as int,
+            (writeBehind.batchSize ?: Hibernate4WriteQueue.DEFAULT_BATCH_SIZE) as int,
+            (writeBehind.maxDelay ?: Hibernate4WriteQueue.DEFAULT_MAX_DELAY) as long,
+            (writeBehind.submitTimeout ?: Hibernate4WriteQueue.DEFAULT_SUBMIT_TIMEOUT) as long)
+    }
+
+    private Hibernate4Replica createReplica(GriffonApplication app, ConfigObject config, String dataSourceName) {
+        ConfigObject replicaConfig = config.replica
+        if (!replicaConfig.remote || !replicaConfig.tables) return null
+        List<Hibernate4Replica.Table> tables = replicaConfig.tables.collect { String table, Map settings ->
+            new Hibernate4Replica.Table(table, settings.key ?: 'id', settings.version ?: 'version')
+        }
+        Hibernate4Replica replica = new Hibernate4Replica(dataSourceName, replicaConfig.remote as String, tables,
+            (replicaConfig.interval ?: Hibernate4Replica.DEFAULT_INTERVAL) as long)
+        replica.setHibernate4Provider(resolveHibernate4Provider(app))
+        replica.setRetention((replicaConfig.retention ?: Hibernate4Replica.DEFAULT_RETENTION) as long)
+        replica.initialize()
+        if (replicaConfig.autoStart != false) replica.start()
+        replica
+    }
+
+    private void configureBulkhead(GriffonApplication app, ConfigObject config, String dataSourceName) {
+        Hibernate4Provider provider = resolveHibernate4Provider(app)
+        ConfigObject bulkhead = config.bulkhead
+        if (!(provider instanceof AbstractHibernate4Provider) || !bulkhead.maxConcurrent) return
+        provider.setBulkhead(dataSourceName, new Hibernate4Bulkhead(dataSourceName,
+            bulkhead.maxConcurrent as int,
+            (bulkhead.maxQueued ?: Integer.MAX_VALUE) as int,
+            (bulkhead.acquireTimeout ?: 30000L) as long,
+            bulkhead.failFast as boolean))
+    }
+
+    private void configureWatchdog(GriffonApplication app, ConfigObject config, String dataSourceName) {
+        Hibernate4Provider provider = resolveHibernate4Provider(app)
+        ConfigObject watchdog = config.watchdog
+        if (!(provider instanceof AbstractHibernate4Provider) || !watchdog.enabled) return
+        Hibernate4Watchdog hibernate4Watchdog = new Hibernate4Watchdog(dataSourceName,
+            (watchdog.warnAfter ?: Hibernate4Watchdog.DEFAULT_WARN_AFTER) as long,
+            (watchdog.errorAfter ?: Hibernate4Watchdog.DEFAULT_ERROR_AFTER) as long,
+            (watchdog.checkInterval ?: Hibernate4Watchdog.DEFAULT_CHECK_INTERVAL) as long,
+            watchdog.captureStackTraces != false)
+        provider.setWatchdog(dataSourceName, hibernate4Watchdog)
+        hibernate4Watchdog.start()
+    }
+
+    private void configureSessionGuard(GriffonApplication app, ConfigObject config, String dataSourceName) {
+        Hibernate4Provider provider = resolveHibernate4Provider(app)
+        ConfigObject sessionGuard = config.sessionGuard
+        // only a boolean true, as HibernateConfigurationHelper registers the listener the guard relies on
+        if (!(provider instanceof AbstractHibernate4Provider) || sessionGuard.enabled != true) return
+        String policy = (sessionGuard.policy ?: 'warn').toString().toUpperCase(Locale.ENGLISH)
+        provider.setSessionGuard(dataSourceName, new Hibernate4SessionGuard(dataSourceName,
+            (sessionGuard.threshold ?: Hibernate4SessionGuard.DEFAULT_THRESHOLD) as int,
+            Hibernate4SessionGuard.Policy.valueOf(policy)))
+    }
+
+    private HibernateConfigurationHelper createConfigurationHelper(ConfigObject config, ConfigObject dsConfig, String dataSourceName) {
         DataSource dataSource = DataSourceHolder.instance.getDataSource(dataSourceName)
-        HibernateConfigurationHelper configHelper = new HibernateConfigurationHelper(config, dsConfig, dataSourceName, dataSource)
+        new HibernateConfigurationHelper(config, dsConfig, dataSourceName, dataSource)
+    }
+
+    private Configuration createConfiguration(GriffonApplication app, HibernateConfigurationHelper configHelper) {
         Configuration configuration = configHelper.buildConfiguration()
         app.event('Hibernate4ConfigurationAvailable', [[
                 configuration: configuration,
-                dataSourceName: dataSourceName,
-                dataSourceConfig: dsConfig,
-                hibernateConfig: config
+                dataSourceName: configHelper.dataSourceName,
+                dataSourceConfig: configHelper.dataSourceConfig,
+                hibernateConfig: configHelper.sessionConfig,
+                databaseMetaData: JdbcUtils.snapshotDatabaseMetaData(configHelper.dataSource)
         ]])
         configuration
     }
 
-    private void createSchema(ConfigObject config, String dataSourceName, Configuration configuration) {
-        String dbCreate = 'create-drop'
-        if (dataSourceName == DEFAULT) {
-            dbCreate = config.dataSource.dbCreate ?: dbCreate
-        } else {
-            dbCreate = config.dataSources[dataSourceName].dbCreate ?: dbCreate
+    private void createSchema(ConfigObject config, String dataSourceName, Configuration configuration, boolean rebuild = false) {
+        def configured = dataSourceName == DEFAULT ? config.dataSource.dbCreate : config.dataSources[dataSourceName].dbCreate
+        String multiTenancy = configuration.getProperty(Environment.MULTI_TENANT)
+        if (multiTenancy && multiTenancy != MultiTenancyStrategy.NONE.name()) {
+            // Hibernate registers no ConnectionProvider for multi-tenant factories, which schema tools require
+            if (configured && !(configured in ['skip', 'validate'])) {
+                throw new IllegalStateException("SessionFactory '$dataSourceName' uses $multiTenancy multi-tenancy and cannot apply dbCreate = '$configured'; " +
+                    "create tenant schemas beforehand and set dbCreate = 'skip'")
+            }
+            if (LOG.debugEnabled) LOG.debug("Skipping schema creation and validation for multi-tenant SessionFactory '$dataSourceName'")
+            configuration.properties.remove('hibernate.hbm2ddl.auto')
+            return
         }
+
+        String dbCreate = configured ?: 'create-drop'
         if (dbCreate == 'skip') dbCreate = 'validate'
+        if (rebuild) {
+            // closing the retired factory would drop the schema used by its replacement
+            if (dbCreate == 'create-drop') {
+                throw new IllegalStateException("Cannot rebuild SessionFactory '$dataSourceName' when dbCreate = 'create-drop'")
+            }
+            if (dbCreate == 'create') dbCreate = 'update'
+        }
         configuration.setProperty('hibernate.hbm2ddl.auto', dbCreate)
     }
 }
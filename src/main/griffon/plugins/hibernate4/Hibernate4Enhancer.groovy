@@ -43,5 +43,25 @@ final class Hibernate4Enhancer {
         mc.withHibernate4 << {String sessionFactoryName, CallableWithArgs callable ->
             provider.withHibernate4(sessionFactoryName, callable)
         }
+        if (provider instanceof AbstractHibernate4Provider) {
+            mc.withHibernate4 << {String sessionFactoryName, String tenantIdentifier, Closure closure ->
+                provider.withHibernate4(sessionFactoryName, tenantIdentifier, closure)
+            }
+            mc.withHibernate4 << {String sessionFactoryName, String tenantIdentifier, CallableWithArgs callable ->
+                provider.withHibernate4(sessionFactoryName, tenantIdentifier, callable)
+            }
+            mc.withHibernate4 << {String sessionFactoryName, CancellationHandle handle, Closure closure ->
+                provider.withHibernate4(sessionFactoryName, handle, closure)
+            }
+            mc.withHibernate4 << {String sessionFactoryName, CancellationHandle handle, CallableWithArgs callable ->
+                provider.withHibernate4(sessionFactoryName, handle, callable)
+            }
+            mc.withHibernate4 << {String sessionFactoryName, FetchPlan fetchPlan, Closure closure ->
+                provider.withHibernate4(sessionFactoryName, fetchPlan, closure)
+            }
+            mc.withHibernate4 << {String sessionFactoryName, FetchPlan fetchPlan, CallableWithArgs callable ->
+                provider.withHibernate4(sessionFactoryName, fetchPlan, callable)
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * <p>Identifiers of the instances of an entity that were inserted, updated or deleted by
+ * committed transactions during one notification interval.</p>
+ * <p>An instance inserted and then updated is reported as inserted only; an instance
+ * inserted and then deleted is not reported at all. When more than {@code maxIds}
+ * identifiers accumulate the set is marked as overflowed and identifiers are dropped;
+ * listeners should then reload everything for that entity.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4EntityChangeSet {
+    private final String entityName;
+    private final int maxIds;
+    private final Set<Serializable> inserted = new LinkedHashSet<Serializable>();
+    private final Set<Serializable> updated = new LinkedHashSet<Serializable>();
+    private final Set<Serializable> deleted = new LinkedHashSet<Serializable>();
+    private boolean overflow;
+    private int changeCount;
+
+    public Hibernate4EntityChangeSet(String entityName, int maxIds) {
+        this.entityName = entityName;
+        this.maxIds = maxIds;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public Set<Serializable> getInserted() {
+        return Collections.unmodifiableSet(inserted);
+    }
+
+    public Set<Serializable> getUpdated() {
+        return Collections.unmodifiableSet(updated);
+    }
+
+    public Set<Serializable> getDeleted() {
+        return Collections.unmodifiableSet(deleted);
+    }
+
+    /**
+     * @return {@code true} if identifiers were dropped because too many changes happened
+     */
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return the number of raw insert, update and delete notifications coalesced into this set
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    public void inserted(Serializable id) {
+        changeCount++;
+        if (overflow) return;
+        inserted.add(id);
+        checkOverflow();
+    }
+
+    public void updated(Serializable id) {
+        changeCount++;
+        if (overflow || inserted.contains(id)) return;
+        updated.add(id);
+        checkOverflow();
+    }
+
+    public void deleted(Serializable id) {
+        changeCount++;
+        if (overflow) return;
+        if (inserted.remove(id)) return;
+        updated.remove(id);
+        deleted.add(id);
+        checkOverflow();
+    }
+
+    /**
+     * Adds the changes of a later change set of the same entity.
+     */
+    public void merge(Hibernate4EntityChangeSet later) {
+        int count = changeCount + later.changeCount;
+        if (later.overflow) {
+            overflow = true;
+            inserted.clear();
+            updated.clear();
+            deleted.clear();
+        } else {
+            for (Serializable id : later.inserted) inserted(id);
+            for (Serializable id : later.updated) updated(id);
+            for (Serializable id : later.deleted) deleted(id);
+        }
+        changeCount = count;
+    }
+
+    private void checkOverflow() {
+        if (inserted.size() + updated.size() + deleted.size() > maxIds) {
+            overflow = true;
+            inserted.clear();
+            updated.clear();
+            deleted.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Hibernate4EntityChangeSet[" + entityName + ": inserted=" + inserted.size() + ", updated=" +
+            updated.size() + ", deleted=" + deleted.size() + (overflow ? ", overflow" : "") + "]";
+    }
+}
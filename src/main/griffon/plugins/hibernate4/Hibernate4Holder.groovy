@@ -31,6 +31,12 @@ class Hibernate4Holder {
     private static final String DEFAULT = 'default'
     private static final Logger LOG = LoggerFactory.getLogger(Hibernate4Holder)
     private final Map<String, SessionFactory> sessionFactories = [:]
+    private final Map<SessionFactory, Integer> inFlight = new IdentityHashMap<SessionFactory, Integer>()
+    private final Set<SessionFactory> retired = Collections.newSetFromMap(new IdentityHashMap<SessionFactory, Boolean>())
+    // names being disconnected, until their factory is closed; fetching them must not reconnect
+    private final Map<String, SessionFactory> disconnecting = [:]
+    private final Map<String, Hibernate4WriteQueue> writeQueues = [:]
+    private final Map<String, Hibernate4Replica> replicas = [:]
     private static final Object[] LOCK = new Object[0]
 
     private static final Hibernate4Holder INSTANCE
@@ -46,7 +52,10 @@ class Hibernate4Holder {
     private Hibernate4Holder() {}
 
     String[] getSessionFactoryNames() {
-        List<String> sessionFactoryNames = new ArrayList().addAll(sessionFactories.keySet())
+        List<String> sessionFactoryNames = []
+        synchronized (LOCK) {
+            sessionFactoryNames.addAll(sessionFactories.findAll { it.value != null }.keySet())
+        }
         sessionFactoryNames.toArray(new String[sessionFactoryNames.size()])
     }
 
@@ -65,14 +74,61 @@ class Hibernate4Holder {
         retrieveSessionFactory(sessionFactoryName) != null
     }
 
-    void disconnectSessionFactory(String sessionFactoryName) {
+    /**
+     * Unregisters and closes the SessionFactory with the given name. Without a deadline the
+     * SessionFactory is closed once all work that acquired it has finished; with a deadline,
+     * in milliseconds since the epoch, this method waits for that work up to the deadline
+     * and then closes the SessionFactory regardless. Until it is closed, fetching a
+     * SessionFactory with the same name fails instead of connecting a new one.
+     *
+     * @return {@code false} if the SessionFactory had to be closed while still in use
+     */
+    boolean disconnectSessionFactory(String sessionFactoryName, long deadline = 0L) {
         if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
-        storeSessionFactory(sessionFactoryName, null)
+        SessionFactory sf = null
+        boolean drained = true
+        synchronized (LOCK) {
+            sf = sessionFactories.remove(sessionFactoryName)
+            if (sf == null) return true
+            disconnecting[sessionFactoryName] = sf
+            if (deadline <= 0L) {
+                if (inFlight.containsKey(sf)) {
+                    retired << sf
+                    return true
+                }
+            } else {
+                long remaining = deadline - System.currentTimeMillis()
+                try {
+                    while (inFlight.containsKey(sf) && remaining > 0L) {
+                        LOCK.wait(remaining)
+                        remaining = deadline - System.currentTimeMillis()
+                    }
+                } catch (InterruptedException e) {
+                    // the factory is no longer registered; close it anyway rather than leak it
+                    Thread.currentThread().interrupt()
+                }
+                drained = !inFlight.containsKey(sf)
+                if (!drained) {
+                    LOG.warn("Closing SessionFactory '$sessionFactoryName' with ${inFlight[sf]} call(s) still running")
+                }
+            }
+        }
+        closeSessionFactory(sf)
+        drained
+    }
+
+    private void disconnected(SessionFactory sf) {
+        synchronized (LOCK) {
+            disconnecting.values().remove(sf)
+        }
     }
 
     SessionFactory fetchSessionFactory(String sessionFactoryName) {
         if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
         SessionFactory sf = retrieveSessionFactory(sessionFactoryName)
+        if (sf == null && isDisconnecting(sessionFactoryName)) {
+            throw new IllegalStateException("SessionFactory '$sessionFactoryName' is being disconnected")
+        }
         if (sf == null) {
             GriffonApplication app = ApplicationHolder.application
             ConfigObject config = Hibernate4Connector.instance.createConfig(app)
@@ -85,6 +141,112 @@ class Hibernate4Holder {
         sf
     }
 
+    Hibernate4WriteQueue getWriteQueue(String sessionFactoryName = DEFAULT) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        fetchSessionFactory(sessionFactoryName)
+        synchronized (LOCK) {
+            writeQueues[sessionFactoryName]
+        }
+    }
+
+    void setWriteQueue(String sessionFactoryName = DEFAULT, Hibernate4WriteQueue writeQueue) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        synchronized (LOCK) {
+            writeQueues[sessionFactoryName] = writeQueue
+        }
+    }
+
+    Hibernate4Replica getReplica(String sessionFactoryName = DEFAULT) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        synchronized (LOCK) {
+            replicas[sessionFactoryName]
+        }
+    }
+
+    void setReplica(String sessionFactoryName = DEFAULT, Hibernate4Replica replica) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        synchronized (LOCK) {
+            replicas[sessionFactoryName] = replica
+        }
+    }
+
+    /**
+     * Fetches a SessionFactory and marks it as being in use until
+     * {@link #releaseSessionFactory(SessionFactory)} is called.
+     */
+    SessionFactory acquireSessionFactory(String sessionFactoryName) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        while (true) {
+            SessionFactory sf = fetchSessionFactory(sessionFactoryName)
+            synchronized (LOCK) {
+                // the factory may have been swapped while it was being fetched
+                if (sessionFactories[sessionFactoryName].is(sf)) {
+                    inFlight[sf] = (inFlight[sf] ?: 0) + 1
+                    return sf
+                }
+            }
+        }
+    }
+
+    void releaseSessionFactory(SessionFactory sf) {
+        if (sf == null) return
+        boolean drained = false
+        synchronized (LOCK) {
+            int count = (inFlight[sf] ?: 1) - 1
+            if (count > 0) {
+                inFlight[sf] = count
+            } else {
+                inFlight.remove(sf)
+                drained = retired.remove(sf)
+                // wakes up disconnectSessionFactory waiting for this factory to drain
+                LOCK.notifyAll()
+            }
+        }
+        if (drained) closeSessionFactory(sf)
+    }
+
+    /**
+     * Replaces the SessionFactory registered with the given name. The previous
+     * SessionFactory is closed as soon as all work that acquired it has finished.
+     *
+     * @return the previous SessionFactory, if any
+     */
+    SessionFactory swapSessionFactory(String sessionFactoryName = DEFAULT, SessionFactory sf) {
+        if (isBlank(sessionFactoryName)) sessionFactoryName = DEFAULT
+        SessionFactory previous = null
+        boolean drained = false
+        synchronized (LOCK) {
+            previous = sessionFactories.put(sessionFactoryName, sf)
+            if (previous != null && !previous.is(sf)) {
+                if (inFlight.containsKey(previous)) {
+                    retired << previous
+                } else {
+                    drained = true
+                }
+            }
+        }
+        if (drained) closeSessionFactory(previous)
+        previous
+    }
+
+    private void closeSessionFactory(SessionFactory sf) {
+        try {
+            if (sf.closed) return
+            if (LOG.debugEnabled) LOG.debug("Closing SessionFactory $sf")
+            sf.close()
+        } catch (Exception e) {
+            LOG.warn("Unexpected error while closing SessionFactory $sf", e)
+        } finally {
+            disconnected(sf)
+        }
+    }
+
+    private boolean isDisconnecting(String sessionFactoryName) {
+        synchronized (LOCK) {
+            disconnecting.containsKey(sessionFactoryName)
+        }
+    }
+
     private SessionFactory retrieveSessionFactory(String sessionFactoryName) {
         synchronized (LOCK) {
             sessionFactories[sessionFactoryName]
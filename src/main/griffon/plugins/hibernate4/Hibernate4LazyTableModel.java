@@ -0,0 +1,286 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.util.ApplicationHolder;
+import griffon.util.CallableWithArgs;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.table.AbstractTableModel;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A {@code TableModel} that loads its rows page by page, on demand, outside the UI thread.</p>
+ * <p>Rows of pages that have not been loaded yet are reported as {@code null} values; once a
+ * page arrives it is published on the UI thread and the affected rows are repainted. Up to
+ * {@code maxCachedPages} pages are kept in memory, evicting the least recently used ones.
+ * While scrolling, the next {@code prefetchPages} pages in the direction of travel are
+ * requested ahead of time.</p>
+ * <p>Requests are served latest first: pages displayed most recently are loaded before
+ * pages that were passed while scrolling, and before prefetched pages. Only the most recent
+ * requests are kept; older ones are dropped and requested again if they are displayed.</p>
+ * <p>Failures to count or load rows are logged and reported to {@code PropertyChangeListener}s
+ * as changes of the {@code error} property, on the UI thread.</p>
+ * <p>Column values are read from each row by property name; rows fetched as {@code Object[]}
+ * are read by column index instead.</p>
+ * <p>All public methods must be called from the UI thread.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4LazyTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4LazyTableModel.class);
+    public static final String ERROR_PROPERTY = "error";
+
+    private final String sessionFactoryName;
+    private final String[] columnNames;
+    private final String[] propertyNames;
+    private final PageFetcher fetcher;
+    private final int pageSize;
+    private final int prefetchPages;
+    private final int maxQueuedPages;
+    private final Map<Integer, List<?>> pages;
+    private final Set<Integer> pending = new HashSet<Integer>();
+    private final LinkedList<int[]> queue = new LinkedList<int[]>();
+    private final ExecutorService executor;
+    private final PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
+
+    private Hibernate4Provider provider = DefaultHibernate4Provider.getInstance();
+    private int rowCount;
+    private int lastPage;
+    private int generation;
+    private RuntimeException error;
+
+    public Hibernate4LazyTableModel(String sessionFactoryName, String[] columnNames, String[] propertyNames, PageFetcher fetcher) {
+        this(sessionFactoryName, columnNames, propertyNames, fetcher, 100, 50, 2);
+    }
+
+    public Hibernate4LazyTableModel(String sessionFactoryName, String[] columnNames, String[] propertyNames, PageFetcher fetcher,
+                                    int pageSize, final int maxCachedPages, int prefetchPages) {
+        if (columnNames.length != propertyNames.length) {
+            throw new IllegalArgumentException("columnNames and propertyNames must have the same length");
+        }
+        this.sessionFactoryName = sessionFactoryName;
+        this.columnNames = columnNames.clone();
+        this.propertyNames = propertyNames.clone();
+        this.fetcher = fetcher;
+        this.pageSize = Math.max(1, pageSize);
+        this.prefetchPages = Math.max(0, prefetchPages);
+        // enough for a screenful of pages plus prefetching in either direction
+        this.maxQueuedPages = 4 + 2 * this.prefetchPages;
+        this.pages = new LinkedHashMap<Integer, List<?>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<?>> eldest) {
+                return size() > Math.max(1, maxCachedPages);
+            }
+        };
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hibernate4-lazy-table-" + Hibernate4LazyTableModel.this.sessionFactoryName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresh();
+    }
+
+    public void setHibernate4Provider(Hibernate4Provider provider) {
+        this.provider = provider != null ? provider : DefaultHibernate4Provider.getInstance();
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        Object row = getRow(rowIndex);
+        if (row == null) return null;
+        if (row instanceof Object[]) return ((Object[]) row)[columnIndex];
+        return InvokerHelper.getProperty(row, propertyNames[columnIndex]);
+    }
+
+    /**
+     * @return the row at the given index or {@code null} if its page has not been loaded yet
+     */
+    public Object getRow(int rowIndex) {
+        int page = rowIndex / pageSize;
+        List<?> rows = pages.get(page);
+        if (rows == null) {
+            request(page, false);
+        }
+        if (page != lastPage) {
+            int direction = page > lastPage ? 1 : -1;
+            lastPage = page;
+            for (int i = 1; i <= prefetchPages; i++) {
+                int ahead = page + direction * i;
+                if (ahead >= 0 && ahead * pageSize < rowCount && !pages.containsKey(ahead)) request(ahead, true);
+            }
+        }
+        int offset = rowIndex % pageSize;
+        return rows != null && offset < rows.size() ? rows.get(offset) : null;
+    }
+
+    /**
+     * @return the last failure to count or load rows, or {@code null}
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.removePropertyChangeListener(listener);
+    }
+
+    /**
+     * Discards all cached pages and counts rows again.
+     */
+    public void refresh() {
+        final int currentGeneration = ++generation;
+        pages.clear();
+        pending.clear();
+        synchronized (queue) {
+            queue.clear();
+        }
+        executor.submit(new Runnable() {
+            public void run() {
+                Integer count = null;
+                RuntimeException failure = null;
+                try {
+                    count = provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Integer>() {
+                        public Integer call(Object[] args) {
+                            return fetcher.count((Session) args[1]);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    LOG.warn("Could not count rows of '" + sessionFactoryName + "'", e);
+                    failure = e;
+                }
+                final Integer counted = count;
+                final RuntimeException failed = failure;
+                publish(new Runnable() {
+                    public void run() {
+                        if (currentGeneration != generation) return;
+                        rowCount = counted != null ? counted : 0;
+                        fireTableDataChanged();
+                        if (failed != null) setError(failed);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops the background loader. The model must not be used afterwards.
+     */
+    public void dispose() {
+        executor.shutdownNow();
+        pages.clear();
+    }
+
+    private void request(int page, boolean prefetch) {
+        if (!pending.add(page)) return;
+        synchronized (queue) {
+            // displayed pages are served before prefetched ones, the latest first
+            int[] pageRequest = new int[]{page, generation};
+            if (prefetch) {
+                queue.addFirst(pageRequest);
+            } else {
+                queue.addLast(pageRequest);
+            }
+            while (queue.size() > maxQueuedPages) {
+                pending.remove(queue.removeFirst()[0]);
+            }
+        }
+        executor.submit(new Runnable() {
+            public void run() {
+                int[] next;
+                synchronized (queue) {
+                    next = queue.pollLast();
+                }
+                // requests coalesced into earlier runs or dropped leave nothing to do
+                if (next != null) load(next[0], next[1]);
+            }
+        });
+    }
+
+    private void load(final int page, final int currentGeneration) {
+        List<?> rows = null;
+        RuntimeException failure = null;
+        try {
+            rows = provider.withHibernate4(sessionFactoryName, new CallableWithArgs<List<?>>() {
+                public List<?> call(Object[] args) {
+                    Session session = (Session) args[1];
+                    List<?> result = fetcher.fetch(session, page * pageSize, pageSize);
+                    // rows outlive the session; do not keep them attached
+                    session.clear();
+                    return result;
+                }
+            });
+        } catch (RuntimeException e) {
+            LOG.warn("Could not load page " + page + " from '" + sessionFactoryName + "'", e);
+            failure = e;
+        }
+        final List<?> loaded = rows;
+        final RuntimeException failed = failure;
+        publish(new Runnable() {
+            public void run() {
+                if (currentGeneration != generation) return;
+                pending.remove(page);
+                if (failed != null) setError(failed);
+                // failed pages are requested again the next time they are displayed
+                if (loaded == null) return;
+                pages.put(page, loaded);
+                int first = page * pageSize;
+                int last = Math.min(rowCount, first + pageSize) - 1;
+                if (last >= first) fireTableRowsUpdated(first, last);
+            }
+        });
+    }
+
+    private void setError(RuntimeException error) {
+        RuntimeException previous = this.error;
+        this.error = error;
+        changeSupport.firePropertyChange(ERROR_PROPERTY, previous, error);
+    }
+
+    private static void publish(Runnable runnable) {
+        ApplicationHolder.getApplication().execInsideUIAsync(runnable);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+
+/**
+ * <p>Streams BLOB and CLOB values in fixed size buffers, so that large values are never
+ * held in memory as a whole.</p>
+ * <p>Properties must be mapped as {@code java.sql.Blob} or {@code java.sql.Clob}; the
+ * {@code byte[]} and {@code String} mappings of LOB columns load values completely. LOB
+ * values may only be read while the session that loaded them is open.</p>
+ * <pre>
+ * withHibernate4 { sessionFactoryName, session ->
+ *     Document document = new Document(name: file.name)
+ *     document.content = Hibernate4Lobs.createBlob(session, new FileInputStream(file), file.length())
+ *     session.save(document)
+ * }
+ * </pre>
+ *
+ * @author Andres Almiray
+ */
+public final class Hibernate4Lobs {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private Hibernate4Lobs() {
+    }
+
+    /**
+     * Creates a Blob that is written from the given stream when the owning entity is flushed.
+     */
+    public static Blob createBlob(Session session, InputStream source, long length) {
+        return session.getLobHelper().createBlob(source, length);
+    }
+
+    public static Blob createBlob(Session session, ReadableByteChannel source, long length) {
+        return createBlob(session, Channels.newInputStream(source), length);
+    }
+
+    /**
+     * Creates a Clob that is written from the given reader when the owning entity is flushed.
+     *
+     * @param length the number of characters to be read
+     */
+    public static Clob createClob(Session session, Reader source, long length) {
+        return session.getLobHelper().createClob(source, length);
+    }
+
+    public static InputStream openStream(Blob blob) {
+        try {
+            return blob.getBinaryStream();
+        } catch (SQLException e) {
+            throw new HibernateException("Could not open BLOB stream", e);
+        }
+    }
+
+    public static ReadableByteChannel openChannel(Blob blob) {
+        return Channels.newChannel(openStream(blob));
+    }
+
+    public static Reader openReader(Clob clob) {
+        try {
+            return clob.getCharacterStream();
+        } catch (SQLException e) {
+            throw new HibernateException("Could not open CLOB stream", e);
+        }
+    }
+
+    /**
+     * Copies the contents of a Blob to the given channel.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(Blob blob, WritableByteChannel target) {
+        ReadableByteChannel source = openChannel(blob);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long copied = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) copied += target.write(buffer);
+                buffer.clear();
+            }
+            return copied;
+        } catch (IOException e) {
+            throw new HibernateException("Could not read BLOB", e);
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    public static long copy(Blob blob, OutputStream target) {
+        return copy(blob, Channels.newChannel(target));
+    }
+
+    /**
+     * Copies the contents of a Clob to the given writer.
+     *
+     * @return the number of characters copied
+     */
+    public static long copy(Clob clob, Writer target) {
+        Reader source = openReader(clob);
+        try {
+            char[] buffer = new char[BUFFER_SIZE / 2];
+            long copied = 0;
+            for (int read = source.read(buffer); read != -1; read = source.read(buffer)) {
+                target.write(buffer, 0, read);
+                copied += read;
+            }
+            return copied;
+        } catch (IOException e) {
+            throw new HibernateException("Could not read CLOB", e);
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
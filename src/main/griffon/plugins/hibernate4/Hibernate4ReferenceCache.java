@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.JdbcUtils;
+import griffon.plugins.hibernate4.internal.ReferenceTableFile;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Keeps the results of reference queries (catalogs, codes, currencies) in memory mapped
+ * files that survive restarts.</p>
+ * <p>Every table is paired with a cheap version query, such as
+ * {@code select max(last_updated) from currency}. When a table is loaded the version query
+ * runs first; if its result matches the one stored with the file the rows are mapped back
+ * in without being queried, otherwise the rows are queried and the file is written again.
+ * Rows are decoded from the mapping on access and do not occupy the heap.</p>
+ * <p>Queries are native SQL.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4ReferenceCache {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4ReferenceCache.class);
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.\\-]+");
+    private static final String EXTENSION = ".ref";
+
+    private final File directory;
+    private final Map<String, ReferenceTable> tables = new ConcurrentHashMap<String, ReferenceTable>();
+
+    public Hibernate4ReferenceCache(File directory) {
+        if (directory == null) throw new IllegalArgumentException("directory must not be null");
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the named table, revalidating it with the version query.
+     *
+     * @param session      the session used to run the queries
+     * @param name         the name of the table, also used as file name
+     * @param query        the query returning the rows
+     * @param versionQuery a query returning a single value that changes whenever the rows do
+     */
+    public ReferenceTable load(Session session, final String name, final String query, final String versionQuery) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid reference table name '" + name + "'");
+        }
+        return session.doReturningWork(new ReturningWork<ReferenceTable>() {
+            public ReferenceTable execute(Connection connection) throws SQLException {
+                String version = queryVersion(connection, versionQuery);
+                ReferenceTable table = tables.get(name);
+                if (table != null && version.equals(table.getVersion())) return table;
+
+                File file = new File(directory, name + EXTENSION);
+                if (table == null && file.exists()) {
+                    try {
+                        ReferenceTableFile mapped = ReferenceTableFile.map(file);
+                        if (version.equals(mapped.getVersionToken())) {
+                            table = new ReferenceTable(name, mapped, true);
+                            tables.put(name, table);
+                            return table;
+                        }
+                    } catch (IOException e) {
+                        LOG.warn("Discarding unreadable reference table " + file, e);
+                    }
+                }
+
+                table = new ReferenceTable(name, refresh(connection, file, version, query), false);
+                tables.put(name, table);
+                return table;
+            }
+        });
+    }
+
+    /**
+     * @return the named table as last loaded or {@code null}
+     */
+    public ReferenceTable get(String name) {
+        return name != null ? tables.get(name) : null;
+    }
+
+    /**
+     * Forgets the named table and deletes its file; the next load queries its rows again.
+     */
+    public void evict(String name) {
+        if (name == null || !NAME.matcher(name).matches()) return;
+        tables.remove(name);
+        File file = new File(directory, name + EXTENSION);
+        if (file.exists() && !file.delete()) {
+            // mapped files cannot be deleted on some platforms; a stale version is replaced on load
+            LOG.debug("Could not delete reference table " + file);
+        }
+    }
+
+    private ReferenceTableFile refresh(Connection connection, File file, String version, String query) throws SQLException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create reference cache directory " + directory);
+        }
+        Statement statement = null;
+        ResultSet rs = null;
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", directory);
+            statement = connection.createStatement();
+            rs = statement.executeQuery(query);
+            int rows = ReferenceTableFile.write(tmp, version, rs);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Stored " + rows + " rows of reference table " + file.getName() + " at version '" + version + "'");
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    // the previous file is still mapped; serve this run from the temporary copy
+                    LOG.warn("Could not replace reference table " + file);
+                    tmp.deleteOnExit();
+                    return ReferenceTableFile.map(tmp);
+                }
+            }
+            tmp = null;
+            return ReferenceTableFile.map(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot store reference table " + file, e);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+            if (tmp != null && !tmp.equals(file)) tmp.delete();
+        }
+    }
+
+    private static String queryVersion(Connection connection, String versionQuery) throws SQLException {
+        Statement statement = null;
+        ResultSet rs = null;
+        try {
+            statement = connection.createStatement();
+            rs = statement.executeQuery(versionQuery);
+            Object version = rs.next() ? rs.getObject(1) : null;
+            return version != null ? version.toString() : "";
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+}
@@ -0,0 +1,717 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.JdbcUtils;
+import griffon.util.CallableWithArgs;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Keeps selected tables of a local, typically embedded, database in sync with a remote
+ * database, so that reads can be served by the local SessionFactory.</p>
+ * <p>Every sync pushes local changes first and then pulls remote ones:</p>
+ * <ul>
+ * <li>Local inserts, updates and deletes made through the local SessionFactory are recorded
+ * in the {@code HIBERNATE4_CHANGES} table of the local database. Pushing copies the current
+ * state of every changed row to the remote database; rows whose remote version is newer
+ * than the local one are left untouched and counted as conflicts, the remote state wins.</li>
+ * <li>Pulling copies remote rows whose version column is not older than the highest version
+ * already pulled. Version columns must grow across the whole table, i.e, a last modified
+ * timestamp or a value assigned from a sequence. Remote deletes are read from the
+ * {@code HIBERNATE4_CHANGES} table of the remote database, which receives the deletes pushed
+ * by every replica; other writers must record their deletes there as well. Remote rows
+ * and deletes of rows that changed locally since the last push are not applied until that
+ * change was pushed, so that the comparison of versions decides which one wins.</li>
+ * </ul>
+ * <p>The highest versions pulled are kept in the {@code HIBERNATE4_SYNC} table of the local
+ * database. Both bookkeeping tables are created by {@link #initialize()} when missing.
+ * Deletes older than the retention period are removed from the remote change log; a replica
+ * that does not sync within that period may miss them.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4Replica {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4Replica.class);
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    public static final String CHANGES_TABLE = "HIBERNATE4_CHANGES";
+    public static final String SYNC_TABLE = "HIBERNATE4_SYNC";
+    public static final String INSERT = "I";
+    public static final String UPDATE = "U";
+    public static final String DELETE = "D";
+    public static final long DEFAULT_INTERVAL = 30000L;
+    public static final long DEFAULT_RETENTION = 7L * 24L * 60L * 60L * 1000L;
+    private static final String DELETES_MARK = "__deletes__";
+
+    private final String localName;
+    private final String remoteName;
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+    private final long interval;
+    private final Map<String, Integer> keyTypes = new ConcurrentHashMap<String, Integer>();
+    private final Object syncLock = new Object();
+    private final AtomicLong pushed = new AtomicLong();
+    private final AtomicLong pulled = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private Hibernate4Provider provider = DefaultHibernate4Provider.getInstance();
+    private long retention = DEFAULT_RETENTION;
+    private ScheduledExecutorService scheduler;
+    private boolean localInitialized;
+    private boolean remoteInitialized;
+    private volatile long lastSync;
+
+    public Hibernate4Replica(String localName, String remoteName, Collection<Table> tables, long interval) {
+        if (localName == null || localName.equals(remoteName)) {
+            throw new IllegalArgumentException("Local and remote SessionFactories must be different");
+        }
+        this.localName = localName;
+        this.remoteName = remoteName;
+        for (Table table : tables) this.tables.put(table.getName().toLowerCase(Locale.ENGLISH), table);
+        this.interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+    }
+
+    public void setHibernate4Provider(Hibernate4Provider provider) {
+        this.provider = provider != null ? provider : DefaultHibernate4Provider.getInstance();
+    }
+
+    /**
+     * Sets for how long, in milliseconds, deletes are kept in the remote change log.
+     */
+    public void setRetention(long retention) {
+        this.retention = retention > 0 ? retention : DEFAULT_RETENTION;
+    }
+
+    public long getRetention() {
+        return retention;
+    }
+
+    public String getLocalName() {
+        return localName;
+    }
+
+    public String getRemoteName() {
+        return remoteName;
+    }
+
+    public Collection<Table> getTables() {
+        return Collections.unmodifiableCollection(tables.values());
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public long getPushedCount() {
+        return pushed.get();
+    }
+
+    public long getPulledCount() {
+        return pulled.get();
+    }
+
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+
+    /**
+     * @return the time of the last successful sync, or 0 if none happened yet
+     */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+    /**
+     * Syncs in the background every {@code interval} milliseconds, starting one interval
+     * from now. Call {@link #sync()} to sync right away.
+     */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hibernate4-replica-" + localName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sync();
+                } catch (RuntimeException e) {
+                    // the remote database may be unreachable; try again on the next round
+                    LOG.warn("Could not sync replica '" + localName + "' with '" + remoteName + "'", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(interval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    /**
+     * Creates the bookkeeping tables when missing. The local ones must exist before the
+     * local SessionFactory writes to a replicated table; an unreachable remote database is
+     * tolerated and its change log created on the next sync.
+     */
+    public void initialize() {
+        synchronized (syncLock) {
+            initializeLocal();
+            try {
+                initializeRemote();
+            } catch (RuntimeException e) {
+                LOG.warn("Could not prepare the change log of '" + remoteName + "' for replica '" + localName + "'", e);
+            }
+        }
+    }
+
+    private void initializeLocal() {
+        if (localInitialized) return;
+        withConnection(localName, new ReturningWork<Void>() {
+            public Void execute(Connection connection) throws SQLException {
+                createTables(connection, true);
+                return null;
+            }
+        });
+        localInitialized = true;
+    }
+
+    private void initializeRemote() {
+        if (remoteInitialized) return;
+        withConnection(remoteName, new ReturningWork<Void>() {
+            public Void execute(Connection connection) throws SQLException {
+                createTables(connection, false);
+                return null;
+            }
+        });
+        remoteInitialized = true;
+    }
+
+    /**
+     * Pushes local changes and pulls remote ones right away.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            initializeLocal();
+            initializeRemote();
+            int out = push();
+            int in = pull();
+            lastSync = System.currentTimeMillis();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Replica '" + localName + "' pushed " + out + " and pulled " + in + " rows from '" + remoteName + "'");
+            }
+        }
+    }
+
+    private int push() {
+        return withConnection(localName, new ReturningWork<Integer>() {
+            public Integer execute(Connection local) throws SQLException {
+                final List<Object[]> changes = readLocalChanges(local);
+                if (changes.isEmpty()) return 0;
+
+                // only the last operation on every row matters
+                final Map<String, Object[]> latest = new LinkedHashMap<String, Object[]>();
+                for (Object[] change : changes) {
+                    String key = change[0] + "#" + change[1];
+                    latest.remove(key);
+                    latest.put(key, change);
+                }
+                final Connection localConnection = local;
+                int count = withConnection(remoteName, new ReturningWork<Integer>() {
+                    public Integer execute(Connection remote) throws SQLException {
+                        int count = 0;
+                        for (Object[] change : latest.values()) {
+                            Table table = tables.get(((String) change[0]).toLowerCase(Locale.ENGLISH));
+                            if (table == null) continue;
+                            if (DELETE.equals(change[2])) {
+                                deleteRow(remote, table, (String) change[1], keyType(localConnection, table));
+                                recordDelete(remote, table, (String) change[1]);
+                                count++;
+                            } else if (pushRow(localConnection, remote, table, (String) change[1])) {
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                });
+                deleteLocalChanges(local, changes);
+                pushed.addAndGet(count);
+                return count;
+            }
+        });
+    }
+
+    private int pull() {
+        // local first, as push does, so that both take the bulkheads of either side in the same order
+        return withConnection(localName, new ReturningWork<Integer>() {
+            public Integer execute(final Connection local) throws SQLException {
+                return withConnection(remoteName, new ReturningWork<Integer>() {
+                    public Integer execute(Connection remote) throws SQLException {
+                        // rows changed locally after push read the change log
+                        Set<String> unpushed = new HashSet<String>();
+                        for (Object[] change : readLocalChanges(local)) {
+                            unpushed.add(rowKey((String) change[0], (String) change[1]));
+                        }
+                        int count = 0;
+                        for (Table table : tables.values()) {
+                            count += pullTable(remote, local, table, unpushed);
+                        }
+                        count += pullDeletes(remote, local, unpushed);
+                        pruneDeletes(remote);
+                        pulled.addAndGet(count);
+                        return count;
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean pushRow(Connection local, Connection remote, Table table, String rowId) throws SQLException {
+        int keyType = keyType(local, table);
+        PreparedStatement select = local.prepareStatement("select * from " + table.getName() + " where " + table.getKeyColumn() + " = ?");
+        ResultSet rs = null;
+        try {
+            select.setObject(1, rowId, keyType);
+            rs = select.executeQuery();
+            // the row was removed by other means after it changed
+            if (!rs.next()) return false;
+
+            ResultSetMetaData metaData = rs.getMetaData();
+            Object localVersion = rs.getObject(columnIndex(metaData, table.getVersionColumn()));
+            Object remoteVersion = readVersion(remote, table, rowId, keyType);
+            if (remoteVersion != null && localVersion != null && compareVersions(remoteVersion, localVersion) > 0) {
+                conflicts.incrementAndGet();
+                LOG.info("Remote row " + rowId + " of " + table.getName() + " is newer; discarding local change");
+                return false;
+            }
+            upsert(remote, table, rs, keyType);
+            return true;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(select);
+        }
+    }
+
+    private int pullTable(Connection remote, Connection local, Table table, Set<String> unpushed) throws SQLException {
+        int versionType = columnType(remote, table.getName(), table.getVersionColumn());
+        Object mark = toVersion(readMark(local, table.getName()), versionType);
+        int keyType = keyType(local, table);
+
+        // rows sharing the highest version may still be committing; read them again next time
+        String sql = "select * from " + table.getName() +
+            (mark != null ? " where " + table.getVersionColumn() + " >= ?" : "") +
+            " order by " + table.getVersionColumn();
+        PreparedStatement select = remote.prepareStatement(sql);
+        ResultSet rs = null;
+        int count = 0;
+        try {
+            if (mark != null) select.setObject(1, mark);
+            rs = select.executeQuery();
+            int versionIndex = columnIndex(rs.getMetaData(), table.getVersionColumn());
+            int keyIndex = columnIndex(rs.getMetaData(), table.getKeyColumn());
+            Object highest = null;
+            boolean skipped = false;
+            while (rs.next()) {
+                if (unpushed.contains(rowKey(table.getName(), String.valueOf(rs.getObject(keyIndex))))) {
+                    // pulled again once the local change was pushed
+                    skipped = true;
+                    continue;
+                }
+                upsert(local, table, rs, keyType);
+                Object version = rs.getObject(versionIndex);
+                if (version != null && !skipped) highest = version;
+                count++;
+            }
+            if (highest != null) writeMark(local, table.getName(), highest.toString());
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(select);
+        }
+        return count;
+    }
+
+    private int pullDeletes(Connection remote, Connection local, Set<String> unpushed) throws SQLException {
+        Object mark = toVersion(readMark(local, DELETES_MARK), Types.TIMESTAMP);
+        PreparedStatement select = remote.prepareStatement("select TABLE_NAME, ROW_ID, CHANGED_AT from " + CHANGES_TABLE +
+            " where OPERATION = ?" + (mark != null ? " and CHANGED_AT >= ?" : "") + " order by CHANGED_AT");
+        ResultSet rs = null;
+        int count = 0;
+        try {
+            select.setString(1, DELETE);
+            if (mark != null) select.setObject(2, mark);
+            rs = select.executeQuery();
+            Timestamp highest = null;
+            boolean skipped = false;
+            while (rs.next()) {
+                Table table = tables.get(rs.getString(1).toLowerCase(Locale.ENGLISH));
+                if (table != null && unpushed.contains(rowKey(table.getName(), rs.getString(2)))) {
+                    skipped = true;
+                    continue;
+                }
+                if (!skipped) highest = rs.getTimestamp(3);
+                if (table == null) continue;
+                count += deleteRow(local, table, rs.getString(2), keyType(local, table));
+            }
+            if (highest != null) writeMark(local, DELETES_MARK, highest.toString());
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(select);
+        }
+        return count;
+    }
+
+    private void pruneDeletes(Connection remote) throws SQLException {
+        PreparedStatement statement = remote.prepareStatement("delete from " + CHANGES_TABLE + " where OPERATION = ? and CHANGED_AT < ?");
+        try {
+            statement.setString(1, DELETE);
+            statement.setTimestamp(2, new Timestamp(System.currentTimeMillis() - retention));
+            statement.executeUpdate();
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private void upsert(Connection target, Table table, ResultSet source, int keyType) throws SQLException {
+        ResultSetMetaData metaData = source.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        int keyIndex = columnIndex(metaData, table.getKeyColumn());
+
+        StringBuilder update = new StringBuilder("update ").append(table.getName()).append(" set ");
+        StringBuilder insert = new StringBuilder("insert into ").append(table.getName()).append(" (");
+        StringBuilder values = new StringBuilder();
+        boolean first = true;
+        for (int i = 1; i <= columnCount; i++) {
+            if (i > 1) {
+                insert.append(", ");
+                values.append(", ");
+            }
+            insert.append(metaData.getColumnName(i));
+            values.append('?');
+            if (i == keyIndex) continue;
+            if (!first) update.append(", ");
+            update.append(metaData.getColumnName(i)).append(" = ?");
+            first = false;
+        }
+        update.append(" where ").append(table.getKeyColumn()).append(" = ?");
+        insert.append(") values (").append(values).append(')');
+
+        int updated = 0;
+        if (!first) {
+            PreparedStatement statement = target.prepareStatement(update.toString());
+            try {
+                int parameter = 1;
+                for (int i = 1; i <= columnCount; i++) {
+                    if (i != keyIndex) bind(statement, parameter++, source.getObject(i), metaData.getColumnType(i));
+                }
+                bind(statement, parameter, source.getObject(keyIndex), keyType);
+                updated = statement.executeUpdate();
+            } finally {
+                JdbcUtils.closeStatement(statement);
+            }
+        }
+        if (updated == 0) {
+            PreparedStatement statement = target.prepareStatement(insert.toString());
+            try {
+                for (int i = 1; i <= columnCount; i++) {
+                    bind(statement, i, source.getObject(i), metaData.getColumnType(i));
+                }
+                statement.executeUpdate();
+            } catch (SQLException e) {
+                // the row may already be there when the key column is the only column
+                if (!first) throw e;
+            } finally {
+                JdbcUtils.closeStatement(statement);
+            }
+        }
+    }
+
+    private int deleteRow(Connection connection, Table table, String rowId, int keyType) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("delete from " + table.getName() + " where " + table.getKeyColumn() + " = ?");
+        try {
+            statement.setObject(1, rowId, keyType);
+            return statement.executeUpdate();
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private void recordDelete(Connection remote, Table table, String rowId) throws SQLException {
+        PreparedStatement statement = remote.prepareStatement("insert into " + CHANGES_TABLE +
+            " (TABLE_NAME, ROW_ID, OPERATION, CHANGED_AT) values (?, ?, ?, CURRENT_TIMESTAMP)");
+        try {
+            statement.setString(1, table.getName());
+            statement.setString(2, rowId);
+            statement.setString(3, DELETE);
+            statement.executeUpdate();
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private Object readVersion(Connection connection, Table table, String rowId, int keyType) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("select " + table.getVersionColumn() +
+            " from " + table.getName() + " where " + table.getKeyColumn() + " = ?");
+        ResultSet rs = null;
+        try {
+            statement.setObject(1, rowId, keyType);
+            rs = statement.executeQuery();
+            return rs.next() ? rs.getObject(1) : null;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private List<Object[]> readLocalChanges(Connection local) throws SQLException {
+        Statement statement = local.createStatement();
+        ResultSet rs = null;
+        try {
+            rs = statement.executeQuery("select TABLE_NAME, ROW_ID, OPERATION, CHANGED_AT from " + CHANGES_TABLE + " order by CHANGED_AT");
+            List<Object[]> changes = new ArrayList<Object[]>();
+            while (rs.next()) {
+                changes.add(new Object[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getTimestamp(4)});
+            }
+            return changes;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private void deleteLocalChanges(Connection local, List<Object[]> changes) throws SQLException {
+        // changes recorded while pushing are kept for the next round
+        PreparedStatement statement = local.prepareStatement("delete from " + CHANGES_TABLE +
+            " where TABLE_NAME = ? and ROW_ID = ? and OPERATION = ? and CHANGED_AT = ?");
+        try {
+            for (Object[] change : changes) {
+                statement.setString(1, (String) change[0]);
+                statement.setString(2, (String) change[1]);
+                statement.setString(3, (String) change[2]);
+                statement.setTimestamp(4, (Timestamp) change[3]);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private String readMark(Connection local, String name) throws SQLException {
+        PreparedStatement statement = local.prepareStatement("select LAST_VERSION from " + SYNC_TABLE + " where TABLE_NAME = ?");
+        ResultSet rs = null;
+        try {
+            statement.setString(1, name);
+            rs = statement.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private void writeMark(Connection local, String name, String mark) throws SQLException {
+        PreparedStatement update = local.prepareStatement("update " + SYNC_TABLE + " set LAST_VERSION = ? where TABLE_NAME = ?");
+        try {
+            update.setString(1, mark);
+            update.setString(2, name);
+            if (update.executeUpdate() > 0) return;
+        } finally {
+            JdbcUtils.closeStatement(update);
+        }
+        PreparedStatement insert = local.prepareStatement("insert into " + SYNC_TABLE + " (TABLE_NAME, LAST_VERSION) values (?, ?)");
+        try {
+            insert.setString(1, name);
+            insert.setString(2, mark);
+            insert.executeUpdate();
+        } finally {
+            JdbcUtils.closeStatement(insert);
+        }
+    }
+
+    private void createTables(Connection connection, boolean local) throws SQLException {
+        if (!tableExists(connection, CHANGES_TABLE)) {
+            execute(connection, "create table " + CHANGES_TABLE + " (TABLE_NAME varchar(128) not null, " +
+                "ROW_ID varchar(255) not null, OPERATION char(1) not null, CHANGED_AT timestamp not null)");
+        }
+        if (local && !tableExists(connection, SYNC_TABLE)) {
+            execute(connection, "create table " + SYNC_TABLE + " (TABLE_NAME varchar(128) not null primary key, LAST_VERSION varchar(64))");
+        }
+    }
+
+    private static String rowKey(String table, String rowId) {
+        return table.toLowerCase(Locale.ENGLISH) + "#" + rowId;
+    }
+
+    private int keyType(Connection connection, Table table) throws SQLException {
+        Integer type = keyTypes.get(table.getName());
+        if (type == null) {
+            type = columnType(connection, table.getName(), table.getKeyColumn());
+            keyTypes.put(table.getName(), type);
+        }
+        return type;
+    }
+
+    private <T> T withConnection(String sessionFactoryName, final ReturningWork<T> work) {
+        return provider.withHibernate4(sessionFactoryName, new CallableWithArgs<T>() {
+            public T call(Object[] args) {
+                return ((Session) args[1]).doReturningWork(work);
+            }
+        });
+    }
+
+    private static int columnType(Connection connection, String table, String column) throws SQLException {
+        Statement statement = connection.createStatement();
+        ResultSet rs = null;
+        try {
+            rs = statement.executeQuery("select " + column + " from " + table + " where 1 = 0");
+            return rs.getMetaData().getColumnType(1);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private static int columnIndex(ResultSetMetaData metaData, String column) throws SQLException {
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (metaData.getColumnName(i).equalsIgnoreCase(column)) return i;
+        }
+        throw new SQLException("Column " + column + " not found");
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (String name : new String[]{table, table.toLowerCase(Locale.ENGLISH)}) {
+            ResultSet rs = metaData.getTables(null, null, name, null);
+            try {
+                if (rs.next()) return true;
+            } finally {
+                JdbcUtils.closeResultSet(rs);
+            }
+        }
+        return false;
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, int index, Object value, int sqlType) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, sqlType);
+        } else {
+            statement.setObject(index, value);
+        }
+    }
+
+    private static Object toVersion(String mark, int sqlType) {
+        if (mark == null) return null;
+        switch (sqlType) {
+            case Types.TIMESTAMP:
+                return Timestamp.valueOf(mark);
+            case Types.DATE:
+                return java.sql.Date.valueOf(mark);
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return new BigDecimal(mark);
+            default:
+                return mark;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareVersions(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+        }
+        if (a instanceof Comparable && a.getClass().isInstance(b)) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * A replicated table, identified by a single key column and versioned by a column whose
+     * values grow across the whole table.
+     */
+    public static class Table {
+        private final String name;
+        private final String keyColumn;
+        private final String versionColumn;
+
+        public Table(String name, String keyColumn, String versionColumn) {
+            for (String identifier : new String[]{name, keyColumn, versionColumn}) {
+                if (identifier == null || !IDENTIFIER.matcher(identifier).matches()) {
+                    throw new IllegalArgumentException("Invalid replica table definition: " + name + "(" + keyColumn + ", " + versionColumn + ")");
+                }
+            }
+            this.name = name;
+            this.keyColumn = keyColumn;
+            this.versionColumn = versionColumn;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKeyColumn() {
+            return keyColumn;
+        }
+
+        public String getVersionColumn() {
+            return versionColumn;
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + keyColumn + ", " + versionColumn + ")";
+        }
+    }
+}
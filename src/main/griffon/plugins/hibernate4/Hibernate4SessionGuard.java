@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Bounds the number of entities a session started by a provider keeps in its
+ * persistence context.</p>
+ * <p>The count is checked at safe points: after an entity is saved, updated or persisted,
+ * and after the session is flushed ahead of a query, as long as no cascade or flush is
+ * under way. Once it passes {@code threshold} the guard either logs a warning, once per
+ * session ({@link Policy#WARN}), or flushes and clears the session ({@link Policy#FLUSH}).
+ * Entities held by the calling code become detached after the session is cleared.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4SessionGuard {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4SessionGuard.class);
+    private static final ThreadLocal<Attachment> CURRENT = new ThreadLocal<Attachment>();
+
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    public enum Policy {
+        WARN, FLUSH
+    }
+
+    private final String sessionFactoryName;
+    private final int threshold;
+    private final Policy policy;
+
+    public Hibernate4SessionGuard(String sessionFactoryName, int threshold, Policy policy) {
+        if (threshold <= 0) throw new IllegalArgumentException("threshold must be greater than 0");
+        if (policy == null) throw new IllegalArgumentException("policy must not be null");
+        this.sessionFactoryName = sessionFactoryName;
+        this.threshold = threshold;
+        this.policy = policy;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Guards the given session on the current thread until {@link #detach(Session)} is called.
+     */
+    public void attach(Session session) {
+        CURRENT.set(new Attachment(session, this, CURRENT.get()));
+    }
+
+    public void detach(Session session) {
+        Attachment attachment = CURRENT.get();
+        if (attachment == null || attachment.session != session) return;
+        if (attachment.previous != null) {
+            CURRENT.set(attachment.previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Applies the guard attached to the given session, if any. Invoked by the plugin's
+     * event listeners at safe points.
+     */
+    public static void safePoint(Session session) {
+        Attachment attachment = CURRENT.get();
+        if (attachment == null || attachment.session != session) return;
+        PersistenceContext persistenceContext = ((SessionImplementor) session).getPersistenceContext();
+        if (persistenceContext.isFlushing() || persistenceContext.getCascadeLevel() > 0) return;
+        attachment.guard.check(attachment, persistenceContext.getEntityEntries().size());
+    }
+
+    private void check(Attachment attachment, int managed) {
+        if (managed <= threshold) return;
+        if (policy == Policy.FLUSH) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Flushing and clearing session of '" + sessionFactoryName + "' holding " + managed + " entities");
+            }
+            attachment.session.flush();
+            attachment.session.clear();
+        } else if (!attachment.warned) {
+            attachment.warned = true;
+            LOG.warn("Session of '" + sessionFactoryName + "' holds " + managed + " entities, more than the threshold of " + threshold,
+                new Throwable("Persistence context grown at"));
+        }
+    }
+
+    private static class Attachment {
+        private final Session session;
+        private final Hibernate4SessionGuard guard;
+        private final Attachment previous;
+        private boolean warned;
+
+        private Attachment(Session session, Hibernate4SessionGuard guard, Attachment previous) {
+            this.session = session;
+            this.guard = guard;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.JdbcUtils;
+import griffon.plugins.hibernate4.internal.SnapshotInput;
+import griffon.plugins.hibernate4.internal.SnapshotOutput;
+import griffon.plugins.hibernate4.internal.exceptions.DatabaseException;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * <p>Exports and imports table contents to and from a compact binary file.</p>
+ * <p>Rows are streamed through a {@code StatelessSession} connection, encoded with
+ * buffered channel I/O and inserted back using JDBC batches. Each table is stored in
+ * its own section so that independent tables may be loaded in parallel, each one on
+ * its own connection.</p>
+ * <p>Usage from {@code BootstrapHibernate4}</p>
+ * <pre>
+ * def init = { String dataSourceName, Session session ->
+ *     new Hibernate4Snapshot(session.sessionFactory).load(new File('seed.snapshot'), 4)
+ * }
+ * </pre>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4Snapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4Snapshot.class);
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final SessionFactory sessionFactory;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public Hibernate4Snapshot(SessionFactory sessionFactory) {
+        if (sessionFactory == null) {
+            throw new IllegalArgumentException("SessionFactory must not be null");
+        }
+        this.sessionFactory = sessionFactory;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Writes the contents of the given tables or mapped entities into a snapshot file.
+     * Names are resolved against the entity mappings first and treated as table names
+     * otherwise. Tables are stored in the given order, which is also the order used
+     * by a sequential {@link #load(java.io.File)}.
+     *
+     * @param file  the snapshot file to be written
+     * @param names entity or table names
+     * @return the total number of rows written
+     */
+    public long save(File file, String... names) {
+        StatelessSession session = sessionFactory.openStatelessSession();
+        SnapshotOutput output = null;
+        try {
+            output = new SnapshotOutput(new RandomAccessFile(file, "rw").getChannel());
+            Connection connection = connectionOf(session);
+            Map<String, Long> sections = new LinkedHashMap<String, Long>();
+            long rows = 0;
+            for (String name : names) {
+                String table = resolveTableName(name);
+                sections.put(table, output.position());
+                rows += writeTable(connection, table, output);
+            }
+            output.writeDirectory(sections);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Saved " + rows + " rows from " + sections.keySet() + " into " + file);
+            }
+            return rows;
+        } catch (IOException e) {
+            throw new DatabaseException("Could not write snapshot " + file, e);
+        } catch (SQLException e) {
+            throw new DatabaseException("Could not read tables for snapshot " + file, e);
+        } finally {
+            closeQuietly(output);
+            session.close();
+        }
+    }
+
+    /**
+     * Loads all tables found in a snapshot file, one table after the other.
+     *
+     * @param file the snapshot file to be read
+     * @return the total number of rows inserted
+     */
+    public long load(File file) {
+        return load(file, 1);
+    }
+
+    /**
+     * Loads all tables found in a snapshot file using up to {@code parallelism}
+     * concurrent sessions. Tables must not depend on each other (i.e, no foreign
+     * keys among them) when {@code parallelism} is greater than 1.
+     *
+     * @param file        the snapshot file to be read
+     * @param parallelism maximum number of tables loaded at the same time
+     * @return the total number of rows inserted
+     */
+    public long load(final File file, int parallelism) {
+        final Map<String, Long> sections = readDirectory(file);
+        if (parallelism <= 1 || sections.size() <= 1) {
+            long rows = 0;
+            for (Map.Entry<String, Long> section : sections.entrySet()) {
+                rows += loadTable(file, section.getKey(), section.getValue());
+            }
+            return rows;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, sections.size()));
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (final Map.Entry<String, Long> section : sections.entrySet()) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        return loadTable(file, section.getKey(), section.getValue());
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> future : futures) {
+                rows += future.get();
+            }
+            return rows;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while loading snapshot " + file, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new DatabaseException("Could not load snapshot " + file, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long writeTable(Connection connection, String table, SnapshotOutput output) throws SQLException, IOException {
+        Statement statement = null;
+        ResultSet rs = null;
+        try {
+            statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(batchSize);
+            rs = statement.executeQuery("SELECT * FROM " + table);
+            ResultSetMetaData metaData = rs.getMetaData();
+            int columnCount = metaData.getColumnCount();
+            int[] types = new int[columnCount];
+            String[] columns = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = metaData.getColumnName(i + 1);
+                types[i] = metaData.getColumnType(i + 1);
+            }
+            output.writeTableHeader(table, columns, types);
+            long rows = 0;
+            while (rs.next()) {
+                output.writeRow(rs, types);
+                rows++;
+            }
+            output.writeEndOfTable();
+            return rows;
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(statement);
+        }
+    }
+
+    private long loadTable(File file, String table, long offset) {
+        StatelessSession session = sessionFactory.openStatelessSession();
+        SnapshotInput input = null;
+        PreparedStatement statement = null;
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            input = new SnapshotInput(new RandomAccessFile(file, "r").getChannel());
+            input.seek(offset);
+            String[] columns = input.readTableHeader();
+            int[] types = input.getColumnTypes();
+
+            statement = connectionOf(session).prepareStatement(insertStatement(table, columns));
+            long rows = 0;
+            while (input.readRow(statement, types)) {
+                statement.addBatch();
+                if (++rows % batchSize == 0) statement.executeBatch();
+            }
+            if (rows % batchSize != 0) statement.executeBatch();
+            tx.commit();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Loaded " + rows + " rows into " + table);
+            }
+            return rows;
+        } catch (IOException e) {
+            if (tx != null) tx.rollback();
+            throw new DatabaseException("Could not read table " + table + " from snapshot " + file, e);
+        } catch (SQLException e) {
+            if (tx != null) tx.rollback();
+            throw new DatabaseException("Could not load table " + table + " from snapshot " + file, e);
+        } catch (RuntimeException e) {
+            if (tx != null) tx.rollback();
+            throw e;
+        } finally {
+            JdbcUtils.closeStatement(statement);
+            closeQuietly(input);
+            session.close();
+        }
+    }
+
+    private Map<String, Long> readDirectory(File file) {
+        SnapshotInput input = null;
+        try {
+            input = new SnapshotInput(new RandomAccessFile(file, "r").getChannel());
+            return input.readDirectory();
+        } catch (IOException e) {
+            throw new DatabaseException("Could not read snapshot " + file, e);
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private String resolveTableName(String name) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(name);
+        if (metadata instanceof AbstractEntityPersister) {
+            return ((AbstractEntityPersister) metadata).getTableName();
+        }
+        return name;
+    }
+
+    private static String insertStatement(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(columns[i]);
+            values.append('?');
+        }
+        return sql.append(") VALUES (").append(values).append(')').toString();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Connection connectionOf(StatelessSession session) {
+        return session.connection();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Could not close snapshot channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps track of the sessions opened by a provider for a SessionFactory, together with
+ * the thread that opened them, when, and optionally from where.</p>
+ * <p>Sessions open for longer than {@code warnAfter} milliseconds are logged as warnings,
+ * and those open for longer than {@code errorAfter} milliseconds are logged as errors,
+ * along with the call site that opened them and the stack of the thread holding them.
+ * Sessions that are still open once their call completes are reported as leaks.
+ * A threshold of zero disables the corresponding report.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4Watchdog {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4Watchdog.class);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "hibernate4-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static final long DEFAULT_WARN_AFTER = 30000L;
+    public static final long DEFAULT_ERROR_AFTER = 120000L;
+    public static final long DEFAULT_CHECK_INTERVAL = 5000L;
+
+    private final String sessionFactoryName;
+    private final long warnAfter;
+    private final long errorAfter;
+    private final long checkInterval;
+    private final boolean captureStackTraces;
+    private final Set<OpenSession> openSessions = Collections.newSetFromMap(new ConcurrentHashMap<OpenSession, Boolean>());
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong longRunning = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+    private ScheduledFuture<?> task;
+
+    public Hibernate4Watchdog(String sessionFactoryName, long warnAfter, long errorAfter, long checkInterval, boolean captureStackTraces) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.warnAfter = Math.max(0, warnAfter);
+        this.errorAfter = Math.max(0, errorAfter);
+        this.checkInterval = checkInterval > 0 ? checkInterval : DEFAULT_CHECK_INTERVAL;
+        this.captureStackTraces = captureStackTraces;
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public long getWarnAfter() {
+        return warnAfter;
+    }
+
+    public long getErrorAfter() {
+        return errorAfter;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    public boolean isCaptureStackTraces() {
+        return captureStackTraces;
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getLongRunningCount() {
+        return longRunning.get();
+    }
+
+    public long getLeakCount() {
+        return leaked.get();
+    }
+
+    /**
+     * @return the sessions open right now, oldest first
+     */
+    public List<OpenSession> getOpenSessions() {
+        List<OpenSession> sessions = new ArrayList<OpenSession>(openSessions);
+        Collections.sort(sessions, new Comparator<OpenSession>() {
+            public int compare(OpenSession a, OpenSession b) {
+                return a.startTime < b.startTime ? -1 : (a.startTime == b.startTime ? 0 : 1);
+            }
+        });
+        return sessions;
+    }
+
+    public synchronized void start() {
+        if (task != null) return;
+        task = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unexpected error while checking sessions of '" + sessionFactoryName + "'", e);
+                }
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task == null) return;
+        task.cancel(false);
+        task = null;
+    }
+
+    /**
+     * Starts tracking a session that was just opened by the calling thread.
+     */
+    public OpenSession open(Session session) {
+        OpenSession openSession = new OpenSession(sessionFactoryName, session, Thread.currentThread(),
+            captureStackTraces ? new Throwable("Session opened here").getStackTrace() : null);
+        openSessions.add(openSession);
+        opened.incrementAndGet();
+        return openSession;
+    }
+
+    /**
+     * Stops tracking a session once its call has completed.
+     */
+    public void close(OpenSession openSession) {
+        openSessions.remove(openSession);
+        if (openSession.session.isOpen()) {
+            leaked.incrementAndGet();
+            LOG.error("Session of '" + sessionFactoryName + "' opened by " + openSession.threadName + " was not closed", openSession.callSite());
+        }
+    }
+
+    /**
+     * Reports sessions that crossed a threshold since the last check.
+     */
+    public void check() {
+        long now = System.currentTimeMillis();
+        for (OpenSession openSession : openSessions) {
+            long age = now - openSession.startTime;
+            if (errorAfter > 0 && age >= errorAfter && !openSession.errorReported) {
+                openSession.errorReported = true;
+                if (!openSession.warnReported) longRunning.incrementAndGet();
+                openSession.warnReported = true;
+                LOG.error(describe(openSession, age), openSession.currentStack());
+            } else if (warnAfter > 0 && age >= warnAfter && !openSession.warnReported) {
+                openSession.warnReported = true;
+                longRunning.incrementAndGet();
+                LOG.warn(describe(openSession, age), openSession.currentStack());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Hibernate4Watchdog[" + sessionFactoryName + ": open=" + openSessions.size() +
+            ", opened=" + getOpenedCount() + ", longRunning=" + getLongRunningCount() + ", leaked=" + getLeakCount() + "]";
+    }
+
+    private String describe(OpenSession openSession, long age) {
+        StringBuilder b = new StringBuilder("Session of '").append(sessionFactoryName).append("' held by ")
+            .append(openSession.threadName).append(" has been open for ").append(age).append("ms");
+        if (openSession.isTransactionActive()) b.append(" with an active transaction");
+        StackTraceElement[] callSite = openSession.getCallSite();
+        if (callSite != null) {
+            b.append("; opened at");
+            for (StackTraceElement element : callSite) b.append("\n\tat ").append(element);
+        }
+        return b.toString();
+    }
+
+    /**
+     * A session tracked by a {@link Hibernate4Watchdog}.
+     */
+    public static class OpenSession {
+        private final String sessionFactoryName;
+        private final Session session;
+        private final Thread thread;
+        private final String threadName;
+        private final long startTime = System.currentTimeMillis();
+        private final StackTraceElement[] callSite;
+        private volatile boolean warnReported;
+        private volatile boolean errorReported;
+
+        private OpenSession(String sessionFactoryName, Session session, Thread thread, StackTraceElement[] callSite) {
+            this.sessionFactoryName = sessionFactoryName;
+            this.session = session;
+            this.thread = thread;
+            this.threadName = thread.getName();
+            this.callSite = callSite;
+        }
+
+        public String getSessionFactoryName() {
+            return sessionFactoryName;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getAge() {
+            return System.currentTimeMillis() - startTime;
+        }
+
+        /**
+         * @return the stack of the call that opened the session, or {@code null} if stack traces are not captured
+         */
+        public StackTraceElement[] getCallSite() {
+            return callSite != null ? callSite.clone() : null;
+        }
+
+        public boolean isTransactionActive() {
+            try {
+                return session.isOpen() && session.getTransaction().isActive();
+            } catch (RuntimeException e) {
+                // the session is being closed by its own thread
+                return false;
+            }
+        }
+
+        private Throwable callSite() {
+            if (callSite == null) return null;
+            Throwable t = new Throwable("Session opened here");
+            t.setStackTrace(callSite);
+            return t;
+        }
+
+        private Throwable currentStack() {
+            Throwable t = new Throwable("Stack of " + threadName);
+            t.setStackTrace(thread.getStackTrace());
+            return t;
+        }
+
+        @Override
+        public String toString() {
+            return "OpenSession[" + sessionFactoryName + ", " + threadName + ", " + getAge() + "ms]";
+        }
+    }
+}
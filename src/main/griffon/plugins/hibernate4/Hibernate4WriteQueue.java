@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.util.CallableWithArgs;
+import groovy.lang.Closure;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * <p>Coalesces small units of work submitted for a SessionFactory into batched
+ * transactions executed by a single writer thread.</p>
+ * <p>A batch is committed once it holds {@code batchSize} units of work or once
+ * {@code maxDelay} milliseconds have elapsed since its first unit was taken, whichever
+ * happens first. Each unit receives its own {@code Future}, which completes after the
+ * batch commits. Should a unit fail then the batch is rolled back and every unit is
+ * retried in its own transaction, so that only the failing unit reports an error.</p>
+ * <p>Submissions block for up to {@code submitTimeout} milliseconds when the queue
+ * holds {@code capacity} pending units.</p>
+ *
+ * @author Andres Almiray
+ */
+public class Hibernate4WriteQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(Hibernate4WriteQueue.class);
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 200;
+    public static final long DEFAULT_MAX_DELAY = 50;
+    public static final long DEFAULT_SUBMIT_TIMEOUT = 5000;
+    private static final long IDLE_POLL = 100;
+
+    private final String sessionFactoryName;
+    private final Hibernate4Provider provider;
+    private final BlockingQueue<WriteTask<?>> queue;
+    private final int batchSize;
+    private final long maxDelay;
+    private final long submitTimeout;
+    private final Object lock = new Object();
+    private Thread writer;
+    private volatile boolean shutdown;
+    private volatile boolean terminated;
+
+    public Hibernate4WriteQueue(String sessionFactoryName, Hibernate4Provider provider) {
+        this(sessionFactoryName, provider, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY, DEFAULT_SUBMIT_TIMEOUT);
+    }
+
+    public Hibernate4WriteQueue(String sessionFactoryName, Hibernate4Provider provider, int capacity, int batchSize, long maxDelay, long submitTimeout) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.provider = provider;
+        this.queue = new LinkedBlockingQueue<WriteTask<?>>(capacity > 0 ? capacity : DEFAULT_CAPACITY);
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.maxDelay = maxDelay >= 0 ? maxDelay : DEFAULT_MAX_DELAY;
+        this.submitTimeout = submitTimeout >= 0 ? submitTimeout : DEFAULT_SUBMIT_TIMEOUT;
+    }
+
+    public String getSessionFactoryName() {
+        return sessionFactoryName;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public <R> Future<R> submit(final Closure<R> closure) {
+        return enqueue(new WriteTask<R>() {
+            R execute(String sessionFactoryName, Session session) {
+                return closure.call(sessionFactoryName, session);
+            }
+        });
+    }
+
+    public <R> Future<R> submit(final CallableWithArgs<R> callable) {
+        return enqueue(new WriteTask<R>() {
+            R execute(String sessionFactoryName, Session session) {
+                return callable.call(new Object[]{sessionFactoryName, session});
+            }
+        });
+    }
+
+    /**
+     * Stops accepting new work and waits up to {@code timeout} milliseconds for
+     * pending work to be written. With a {@code timeout} of 0 or less it does not wait;
+     * the writer finishes the batch it is writing and cancels the units still pending.
+     *
+     * @return {@code true} if all pending work was written
+     */
+    public boolean shutdown(long timeout) {
+        Thread thread;
+        synchronized (lock) {
+            shutdown = true;
+            thread = writer;
+        }
+        if (thread == null) return queue.isEmpty();
+        if (timeout <= 0L) {
+            // Thread.join(0) would wait for as long as the writer runs
+            if (!queue.isEmpty()) {
+                LOG.warn("Write-behind queue for '" + sessionFactoryName + "' shut down without waiting; " + queue.size() + " units pending");
+            }
+            thread.interrupt();
+            return false;
+        }
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            LOG.warn("Write-behind queue for '" + sessionFactoryName + "' did not drain within " + timeout + "ms; " + queue.size() + " units pending");
+            return false;
+        }
+        return true;
+    }
+
+    private <R> Future<R> enqueue(WriteTask<R> task) {
+        ensureWriterStarted();
+        try {
+            if (!queue.offer(task, submitTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RejectedExecutionException("Write-behind queue for '" + sessionFactoryName + "' is full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while submitting to write-behind queue for '" + sessionFactoryName + "'", e);
+        }
+        // the writer may have finished while the task was being offered; if its final sweep
+        // did not pick the task up, nothing else ever will
+        if (terminated && queue.remove(task)) {
+            throw new RejectedExecutionException("Write-behind queue for '" + sessionFactoryName + "' has been shut down");
+        }
+        return task;
+    }
+
+    private void ensureWriterStarted() {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Write-behind queue for '" + sessionFactoryName + "' has been shut down");
+            }
+            if (writer != null) return;
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, "hibernate4-write-behind-" + sessionFactoryName);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void drain() {
+        List<WriteTask<?>> batch = new ArrayList<WriteTask<?>>(batchSize);
+        boolean interrupted = false;
+        while (!interrupted && (!shutdown || !queue.isEmpty())) {
+            try {
+                WriteTask<?> first = queue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    WriteTask<?> next = shutdown || remaining <= 0 ? queue.poll() : queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+
+        terminated = true;
+        if (interrupted) {
+            LOG.warn("Write-behind writer for '" + sessionFactoryName + "' was interrupted; " + queue.size() + " units left unwritten");
+            for (WriteTask<?> task = queue.poll(); task != null; task = queue.poll()) {
+                task.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+        } else {
+            // units offered by submitters that passed the shutdown check just before it was set
+            for (WriteTask<?> task = queue.poll(); task != null; task = queue.poll()) {
+                task.fail(new RejectedExecutionException("Write-behind queue for '" + sessionFactoryName + "' has been shut down"));
+            }
+        }
+    }
+
+    private void write(final List<WriteTask<?>> batch) {
+        try {
+            provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Void>() {
+                public Void call(Object[] args) {
+                    Session session = (Session) args[1];
+                    try {
+                        for (WriteTask<?> task : batch) {
+                            if (task.isCancelled()) continue;
+                            task.run(sessionFactoryName, session);
+                        }
+                    } catch (RuntimeException e) {
+                        session.getTransaction().rollback();
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+            for (WriteTask<?> task : batch) task.complete();
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Committed " + batch.size() + " units of work on '" + sessionFactoryName + "'");
+            }
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).fail(e);
+                return;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Batch of " + batch.size() + " units failed on '" + sessionFactoryName + "'; retrying individually", e);
+            }
+            for (WriteTask<?> task : batch) {
+                write(Collections.<WriteTask<?>>singletonList(task));
+            }
+        }
+    }
+
+    private static abstract class WriteTask<R> extends FutureTask<R> {
+        private static final Callable<Object> NOOP = new Callable<Object>() {
+            public Object call() {
+                return null;
+            }
+        };
+        private R result;
+
+        @SuppressWarnings("unchecked")
+        WriteTask() {
+            super((Callable<R>) NOOP);
+        }
+
+        abstract R execute(String sessionFactoryName, Session session);
+
+        void run(String sessionFactoryName, Session session) {
+            result = execute(sessionFactoryName, session);
+        }
+
+        void complete() {
+            set(result);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of results fetched by a {@link KeysetPager}.
+ *
+ * @author Andres Almiray
+ */
+public class KeysetPage<T> {
+    private final List<T> items;
+    private final String previousToken;
+    private final String nextToken;
+
+    KeysetPage(List<T> items, String previousToken, String nextToken) {
+        this.items = Collections.unmodifiableList(items);
+        this.previousToken = previousToken;
+        this.nextToken = nextToken;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public boolean hasPrevious() {
+        return previousToken != null;
+    }
+
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    /**
+     * @return the token of the preceding page or {@code null} if this is the first page
+     */
+    public String getPreviousToken() {
+        return previousToken;
+    }
+
+    /**
+     * @return the token of the following page or {@code null} if this is the last page
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+}
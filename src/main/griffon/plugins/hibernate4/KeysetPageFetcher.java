@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.util.CallableWithArgs;
+import groovy.lang.Closure;
+import org.hibernate.Session;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Feeds a {@link Hibernate4LazyTableModel} through a {@link KeysetPager}, so that pages
+ * deep into the results cost the same as the first one.</p>
+ * <p>The token of every page boundary reached is remembered. A page whose boundary is not
+ * known yet, i.e, after dragging the scrollbar far ahead, is reached by reading the pages
+ * in between once. Boundaries are forgotten whenever rows are counted again. The pager's
+ * page size must match the model's.</p>
+ * <pre>
+ * KeysetPager pager = KeysetPager.forQuery("from Person p").asc("p.id").pageSize(100);
+ * PageFetcher fetcher = new KeysetPageFetcher(pager, { session -&gt;
+ *     session.createQuery("select count(*) from Person").uniqueResult() as int
+ * });
+ * </pre>
+ *
+ * @author Andres Almiray
+ */
+public class KeysetPageFetcher implements PageFetcher {
+    private final KeysetPager pager;
+    private final CallableWithArgs<Integer> counter;
+    private final Map<Integer, String> tokens = new ConcurrentHashMap<Integer, String>();
+
+    public KeysetPageFetcher(KeysetPager pager, CallableWithArgs<Integer> counter) {
+        this.pager = pager;
+        this.counter = counter;
+    }
+
+    public KeysetPageFetcher(KeysetPager pager, final Closure<Integer> counter) {
+        this(pager, new CallableWithArgs<Integer>() {
+            public Integer call(Object[] args) {
+                return counter.call(args);
+            }
+        });
+    }
+
+    public int count(Session session) {
+        tokens.clear();
+        Integer count = counter.call(new Object[]{session});
+        return count != null ? count : 0;
+    }
+
+    public List<?> fetch(Session session, int offset, int limit) {
+        int pageSize = pager.getPageSize();
+        if (limit != pageSize || offset % pageSize != 0) {
+            throw new IllegalArgumentException("Pages of " + limit + " rows at " + offset + " do not match the pager's page size of " + pageSize);
+        }
+        int page = offset / pageSize;
+        int known = page;
+        while (known > 0 && !tokens.containsKey(known)) known--;
+        KeysetPage<Object> result = pager.page(session, known > 0 ? tokens.get(known) : null);
+        while (true) {
+            if (result.getNextToken() != null) tokens.put(known + 1, result.getNextToken());
+            if (known == page || !result.hasNext()) break;
+            // skipped pages are not kept attached while walking ahead
+            session.clear();
+            result = pager.page(session, result.getNextToken());
+            known++;
+        }
+        return known == page ? result.getItems() : Collections.emptyList();
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.util.CallableWithArgs;
+import groovy.lang.Closure;
+import griffon.plugins.hibernate4.internal.HqlUtils;
+import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.criterion.*;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Pages through ordered query results by seeking past the keys of the last row seen
+ * (keyset pagination) instead of skipping rows with an offset, so that every page
+ * costs the same regardless of how deep it is.</p>
+ * <p>Pages are requested with an opaque token; {@code null} selects the first page.
+ * Key columns must not be nullable and the last key must be unique, typically the
+ * identifier. HQL queries must select a single root entity with an alias and must
+ * not define their own ordering, i.e, {@code from Person p where ...}.
+ * Keys may be numbers, strings, booleans or dates.</p>
+ * <pre>
+ * KeysetPager pager = KeysetPager.forQuery("from Person p where p.active = :active")
+ *     .param("active", true)
+ *     .asc("p.lastName")
+ *     .asc("p.id")
+ *     .pageSize(50);
+ * KeysetPage&lt;Person&gt; page = withHibernate4 { sessionFactoryName, session -> pager.page(session, token) }
+ * </pre>
+ * Criteria queries are created by a callback every time a page is fetched and keys are
+ * given as property names of the root entity
+ * <pre>
+ * KeysetPager pager = KeysetPager.forCriteria { session -> session.createCriteria(Person) }
+ *     .asc("lastName")
+ *     .asc("id");
+ * </pre>
+ *
+ * @author Andres Almiray
+ */
+public class KeysetPager {
+    private static final Pattern ROOT_ALIAS = Pattern.compile(
+        "^\\s*from\\s+\\S+\\s+(?:as\\s+)?(?!(?:where|order|group|having|join|inner|left|right|full|cross|with|fetch|union)\\b)(\\w+)",
+        Pattern.CASE_INSENSITIVE);
+    private static final String KEY_PARAM = "keyset";
+    private static final int TOKEN_VERSION = 1;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_SHORT = 3;
+    private static final byte TYPE_BYTE = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_FLOAT = 6;
+    private static final byte TYPE_BIG_DECIMAL = 7;
+    private static final byte TYPE_BIG_INTEGER = 8;
+    private static final byte TYPE_STRING = 9;
+    private static final byte TYPE_BOOLEAN = 10;
+    private static final byte TYPE_DATE = 11;
+    private static final byte TYPE_SQL_DATE = 12;
+    private static final byte TYPE_TIMESTAMP = 13;
+
+    private final String query;
+    private final String rootAlias;
+    private final int whereIndex;
+    private final CallableWithArgs<Criteria> criteriaFactory;
+    private final Map<String, Object> params = new LinkedHashMap<String, Object>();
+    private final List<String> keys = new ArrayList<String>();
+    private final List<Boolean> ascending = new ArrayList<Boolean>();
+    private int pageSize = 20;
+
+    private KeysetPager(String query, CallableWithArgs<Criteria> criteriaFactory) {
+        this.query = query;
+        this.criteriaFactory = criteriaFactory;
+        if (query != null) {
+            Matcher matcher = ROOT_ALIAS.matcher(query);
+            if (!matcher.find()) {
+                throw new IllegalArgumentException("Query must start with 'from <Entity> <alias>': " + query);
+            }
+            this.rootAlias = matcher.group(1);
+            this.whereIndex = HqlUtils.indexOfClause(query, "where");
+            if (HqlUtils.indexOfClause(query, "order by") >= 0) {
+                throw new IllegalArgumentException("Query must not define its own ordering: " + query);
+            }
+        } else {
+            this.rootAlias = null;
+            this.whereIndex = -1;
+        }
+    }
+
+    public static KeysetPager forQuery(String hql) {
+        return new KeysetPager(hql, null);
+    }
+
+    public static KeysetPager forCriteria(CallableWithArgs<Criteria> criteriaFactory) {
+        return new KeysetPager(null, criteriaFactory);
+    }
+
+    public static KeysetPager forCriteria(final Closure<Criteria> criteriaFactory) {
+        return new KeysetPager(null, new CallableWithArgs<Criteria>() {
+            public Criteria call(Object[] args) {
+                return criteriaFactory.call(args);
+            }
+        });
+    }
+
+    public KeysetPager param(String name, Object value) {
+        params.put(name, value);
+        return this;
+    }
+
+    public KeysetPager asc(String key) {
+        keys.add(key);
+        ascending.add(Boolean.TRUE);
+        return this;
+    }
+
+    public KeysetPager desc(String key) {
+        keys.add(key);
+        ascending.add(Boolean.FALSE);
+        return this;
+    }
+
+    public KeysetPager pageSize(int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException("pageSize must be greater than 0");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public <T> KeysetPage<T> first(Session session) {
+        return page(session, null);
+    }
+
+    /**
+     * Fetches the page identified by the token, as returned by {@link KeysetPage#getNextToken()}
+     * or {@link KeysetPage#getPreviousToken()}. A {@code null} token fetches the first page.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> KeysetPage<T> page(Session session, String token) {
+        if (keys.isEmpty()) throw new IllegalStateException("At least one key must be defined");
+        Cursor cursor = token != null ? decode(token, keys.size()) : null;
+        boolean forward = cursor == null || cursor.forward;
+        Object[] after = cursor != null ? cursor.keys : null;
+
+        List<Object[]> rows = query != null ? fetchQuery(session, forward, after) : fetchCriteria(session, forward, after);
+        boolean more = rows.size() > pageSize;
+        if (more) rows = rows.subList(0, pageSize);
+        if (!forward) {
+            rows = new ArrayList<Object[]>(rows);
+            Collections.reverse(rows);
+        }
+
+        List<T> items = new ArrayList<T>(rows.size());
+        for (Object[] row : rows) items.add((T) row[0]);
+
+        String previous = null;
+        String next = null;
+        if (!rows.isEmpty()) {
+            boolean hasPrevious = forward ? cursor != null : more;
+            boolean hasNext = forward ? more : true;
+            if (hasPrevious) previous = encode(new Cursor(false, keysOf(rows.get(0))));
+            if (hasNext) next = encode(new Cursor(true, keysOf(rows.get(rows.size() - 1))));
+        }
+        return new KeysetPage<T>(items, previous, next);
+    }
+
+    private List<Object[]> fetchQuery(Session session, boolean forward, Object[] after) {
+        StringBuilder hql = new StringBuilder("select ").append(rootAlias);
+        for (String key : keys) hql.append(", ").append(key);
+        hql.append(' ');
+        boolean filtered = whereIndex >= 0;
+        if (after != null && filtered) {
+            // keep the caller's condition intact, e.g, 'a = 1 or b = 2'
+            int end = HqlUtils.endOfKeyword(query, whereIndex, "where");
+            hql.append(query.substring(0, end)).append(" (").append(query.substring(end).trim()).append(')');
+        } else {
+            hql.append(query.trim());
+        }
+        if (after != null) {
+            hql.append(filtered ? " and (" : " where (");
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0) hql.append(" or ");
+                hql.append('(');
+                for (int j = 0; j < i; j++) {
+                    hql.append(keys.get(j)).append(" = :").append(KEY_PARAM).append(j).append(" and ");
+                }
+                hql.append(keys.get(i)).append(seeksUp(i, forward) ? " > :" : " < :").append(KEY_PARAM).append(i).append(')');
+            }
+            hql.append(')');
+        }
+        hql.append(" order by ");
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) hql.append(", ");
+            hql.append(keys.get(i)).append(seeksUp(i, forward) ? " asc" : " desc");
+        }
+
+        Query q = session.createQuery(hql.toString());
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            if (param.getValue() instanceof Collection) {
+                q.setParameterList(param.getKey(), (Collection<?>) param.getValue());
+            } else {
+                q.setParameter(param.getKey(), param.getValue());
+            }
+        }
+        if (after != null) {
+            for (int i = 0; i < after.length; i++) q.setParameter(KEY_PARAM + i, after[i]);
+        }
+        q.setMaxResults(pageSize + 1);
+        List<?> results = q.list();
+        List<Object[]> rows = new ArrayList<Object[]>(results.size());
+        for (Object result : results) rows.add((Object[]) result);
+        return rows;
+    }
+
+    private List<Object[]> fetchCriteria(Session session, boolean forward, Object[] after) {
+        Criteria criteria = criteriaFactory.call(new Object[]{session});
+        if (after != null) {
+            Disjunction seek = Restrictions.disjunction();
+            for (int i = 0; i < keys.size(); i++) {
+                Conjunction clause = Restrictions.conjunction();
+                for (int j = 0; j < i; j++) clause.add(Restrictions.eq(keys.get(j), after[j]));
+                clause.add(seeksUp(i, forward) ? Restrictions.gt(keys.get(i), after[i]) : Restrictions.lt(keys.get(i), after[i]));
+                seek.add(clause);
+            }
+            criteria.add(seek);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            criteria.addOrder(seeksUp(i, forward) ? Order.asc(keys.get(i)) : Order.desc(keys.get(i)));
+        }
+        criteria.setMaxResults(pageSize + 1);
+
+        List<?> results = criteria.list();
+        List<Object[]> rows = new ArrayList<Object[]>(results.size());
+        for (Object entity : results) {
+            ClassMetadata metadata = session.getSessionFactory().getClassMetadata(Hibernate.getClass(entity));
+            Object[] row = new Object[keys.size() + 1];
+            row[0] = entity;
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                row[i + 1] = key.equals(metadata.getIdentifierPropertyName()) ?
+                    metadata.getIdentifier(entity, (SessionImplementor) session) :
+                    metadata.getPropertyValue(entity, key);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private boolean seeksUp(int key, boolean forward) {
+        return ascending.get(key) == forward;
+    }
+
+    private static Object[] keysOf(Object[] row) {
+        return Arrays.copyOfRange(row, 1, row.length);
+    }
+
+    /*
+     * Tokens are handed to callers and come back from them, so they carry plain typed
+     * values only: a version, the direction, and every key prefixed by a type tag.
+     */
+    private static String encode(Cursor cursor) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TOKEN_VERSION);
+            out.writeBoolean(cursor.forward);
+            out.writeShort(cursor.keys.length);
+            for (Object key : cursor.keys) writeKey(out, key);
+            out.close();
+            return DatatypeConverter.printBase64Binary(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode page token", e);
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, Object key) throws IOException {
+        if (key instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) key);
+        } else if (key instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) key);
+        } else if (key instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) key);
+        } else if (key instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) key);
+        } else if (key instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) key);
+        } else if (key instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) key);
+        } else if (key instanceof BigDecimal) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            out.writeUTF(key.toString());
+        } else if (key instanceof BigInteger) {
+            out.writeByte(TYPE_BIG_INTEGER);
+            out.writeUTF(key.toString());
+        } else if (key instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) key);
+        } else if (key instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) key);
+        } else if (key instanceof Timestamp) {
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(((Timestamp) key).getTime());
+            out.writeInt(((Timestamp) key).getNanos());
+        } else if (key instanceof java.sql.Date) {
+            out.writeByte(TYPE_SQL_DATE);
+            out.writeLong(((java.sql.Date) key).getTime());
+        } else if (key instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) key).getTime());
+        } else {
+            throw new IllegalArgumentException("Page keys of type " + (key != null ? key.getClass().getName() : "null") + " are not supported");
+        }
+    }
+
+    private static Cursor decode(String token, int keyCount) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(token)));
+            if (in.readByte() != TOKEN_VERSION) throw new IllegalArgumentException("Unsupported page token version");
+            boolean forward = in.readBoolean();
+            int count = in.readShort();
+            if (count != keyCount) throw new IllegalArgumentException("Page token does not match the keys of this pager");
+            Object[] keys = new Object[count];
+            for (int i = 0; i < count; i++) keys[i] = readKey(in);
+            if (in.read() != -1) throw new IllegalArgumentException("Invalid page token");
+            return new Cursor(forward, keys);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page token", e);
+        }
+    }
+
+    private static Object readKey(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_SHORT:
+                return in.readShort();
+            case TYPE_BYTE:
+                return in.readByte();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_BIG_DECIMAL:
+                return new BigDecimal(in.readUTF());
+            case TYPE_BIG_INTEGER:
+                return new BigInteger(in.readUTF());
+            case TYPE_STRING:
+                return in.readUTF();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_DATE:
+                return new Date(in.readLong());
+            case TYPE_SQL_DATE:
+                return new java.sql.Date(in.readLong());
+            case TYPE_TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            default:
+                throw new IllegalArgumentException("Invalid page token");
+        }
+    }
+
+    private static class Cursor {
+        private final boolean forward;
+        private final Object[] keys;
+
+        private Cursor(boolean forward, Object[] keys) {
+            this.forward = forward;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import org.hibernate.Session;
+
+import java.util.List;
+
+/**
+ * Loads the rows displayed by a {@link Hibernate4LazyTableModel}. Both methods are
+ * invoked outside the UI thread, inside a {@code withHibernate4} block.
+ *
+ * @author Andres Almiray
+ */
+public interface PageFetcher {
+    /**
+     * @return the total number of rows
+     */
+    int count(Session session);
+
+    /**
+     * @return up to {@code limit} rows starting at {@code offset}, in a stable order
+     */
+    List<?> fetch(Session session, int offset, int limit);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import java.util.List;
+
+/**
+ * Folds the partitions read by a {@link PartitionedQuery} into a single result, one batch
+ * of rows at a time.
+ *
+ * @author Andres Almiray
+ */
+public interface PartitionCombiner<P, R> {
+    /**
+     * Reduces a batch of rows of the partition covering keys from {@code low} (inclusive)
+     * to {@code high} (exclusive). Invoked on a worker thread, once per batch, while the
+     * partition's session is still open; partitions are reduced concurrently. The rows
+     * must not be kept once this method returns.
+     */
+    P reduce(long low, long high, List<?> rows);
+
+    /**
+     * Merges the partial result of a batch. Invoked for one batch at a time, in the order
+     * batches are reduced.
+     */
+    void combine(P partial);
+
+    /**
+     * @return the result once every partition has been combined
+     */
+    R result();
+}
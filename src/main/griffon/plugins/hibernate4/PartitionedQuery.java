@@ -0,0 +1,282 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.HqlUtils;
+import griffon.util.CallableWithArgs;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Reads the results of a single HQL query in partitions of consecutive keys, each
+ * partition on its own session and connection, and folds them with a
+ * {@link PartitionCombiner}.</p>
+ * <pre>
+ * BigDecimal total = PartitionedQuery.forQuery("select o.amount from Order o where o.month = :month")
+ *     .param("month", month)
+ *     .key("o.id")
+ *     .parallelism(4)
+ *     .execute(provider, "default", combiner);
+ * </pre>
+ * <p>Keys must be numeric. The range of keys is read up front and split in
+ * {@code partitions} ranges of equal width, which are read by up to {@code parallelism}
+ * threads. Partitions are read-only and scrolled forward only; their rows are handed to
+ * the combiner in batches of {@code batchSize} rows, so a partition never needs to fit in
+ * memory. The query may join other entities and may end with {@code group by} or
+ * {@code order by} clauses; they apply to every partition on its own.</p>
+ *
+ * @author Andres Almiray
+ */
+public class PartitionedQuery {
+    private static final Pattern FROM = Pattern.compile("\\bfrom\\s+(\\S+)\\s+(?:as\\s+)?(\\w+)", Pattern.CASE_INSENSITIVE);
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("where", "group", "order", "join", "inner", "left"));
+    private static final String LOW = "partitionLow";
+    private static final String HIGH = "partitionHigh";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final String query;
+    private final String alias;
+    private final Map<String, Object> params = new LinkedHashMap<String, Object>();
+    private String key;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int partitions;
+    private int fetchSize;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private PartitionedQuery(String query) {
+        Matcher matcher = FROM.matcher(query);
+        if (!matcher.find() || KEYWORDS.contains(matcher.group(2).toLowerCase(Locale.ENGLISH))) {
+            throw new IllegalArgumentException("Query must select from '<Entity> <alias>': " + query);
+        }
+        this.query = query.trim();
+        this.alias = matcher.group(2);
+        if (HqlUtils.indexOfClause(this.query, "from") < 0) {
+            throw new IllegalArgumentException("Query must select from '<Entity> <alias>' outside of subqueries: " + query);
+        }
+    }
+
+    public static PartitionedQuery forQuery(String hql) {
+        return new PartitionedQuery(hql);
+    }
+
+    public PartitionedQuery param(String name, Object value) {
+        params.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the numeric key partitions are split by, i.e, {@code o.id}. Defaults to the
+     * {@code id} property of the aliased entity.
+     */
+    public PartitionedQuery key(String key) {
+        this.key = key;
+        return this;
+    }
+
+    public PartitionedQuery parallelism(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be greater than 0");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the number of partitions; defaults to four per thread.
+     */
+    public PartitionedQuery partitions(int partitions) {
+        if (partitions <= 0) throw new IllegalArgumentException("partitions must be greater than 0");
+        this.partitions = partitions;
+        return this;
+    }
+
+    public PartitionedQuery fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Sets how many rows are handed to {@link PartitionCombiner#reduce} at a time.
+     */
+    public PartitionedQuery batchSize(int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be greater than 0");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Reads every partition from the given SessionFactory.
+     *
+     * @return the combined result
+     */
+    public <P, R> R execute(final Hibernate4Provider provider, final String sessionFactoryName, final PartitionCombiner<P, R> combiner) {
+        final String keyPath = key != null ? key : alias + ".id";
+        Number[] range = provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Number[]>() {
+            public Number[] call(Object[] args) {
+                return readRange((Session) args[1], keyPath);
+            }
+        });
+        if (range == null) return combiner.result();
+
+        final Class<?> keyClass = range[0].getClass();
+        long start = range[0].longValue();
+        long end = range[1].longValue() == Long.MAX_VALUE ? Long.MAX_VALUE : range[1].longValue() + 1;
+        int count = partitions > 0 ? partitions : parallelism * 4;
+        long width = Math.max(1L, (end - start + count - 1) / count);
+
+        // a fixed pool stands in for a fork-join pool, which is not available on Java 6
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, count), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hibernate4-partition-" + sessionFactoryName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+        int submitted = 0;
+        try {
+            for (long low = start; low < end; low = low + width < low ? end : low + width) {
+                final long partitionLow = low;
+                final long partitionHigh = end - low <= width ? end : low + width;
+                completion.submit(Hibernate4Bulkhead.sharePermit(provider, sessionFactoryName, new Callable<Void>() {
+                    public Void call() {
+                        return provider.withHibernate4(sessionFactoryName, new CallableWithArgs<Void>() {
+                            public Void call(Object[] args) {
+                                readPartition((Session) args[1], keyPath, keyClass, partitionLow, partitionHigh, combiner);
+                                return null;
+                            }
+                        });
+                    }
+                }));
+                submitted++;
+            }
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while reading partitions", e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return combiner.result();
+    }
+
+    private <P> void readPartition(Session session, String keyPath, Class<?> keyClass, long low, long high, PartitionCombiner<P, ?> combiner) {
+        session.setDefaultReadOnly(true);
+        StringBuilder hql = new StringBuilder();
+        String[] parts = split();
+        hql.append(parts[0]).append(' ').append(parts[1]);
+        hql.append(parts[2] != null ? " where (" + parts[2] + ") and " : " where ");
+        hql.append(keyPath).append(" >= :").append(LOW).append(" and ").append(keyPath).append(" <= :").append(HIGH);
+        if (parts[3] != null) hql.append(' ').append(parts[3]);
+
+        Query q = session.createQuery(hql.toString());
+        bindParams(q);
+        // bound with the type of the key; the upper bound is inclusive so that it fits that type
+        q.setParameter(LOW, HqlUtils.toKeyValue(low, keyClass));
+        q.setParameter(HIGH, HqlUtils.toKeyValue(high - 1, keyClass));
+        q.setReadOnly(true);
+        if (fetchSize > 0) q.setFetchSize(fetchSize);
+        ScrollableResults results = q.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            List<Object> batch = new ArrayList<Object>(batchSize);
+            while (results.next()) {
+                Object[] row = results.get();
+                batch.add(row.length == 1 ? row[0] : row);
+                if (batch.size() == batchSize) {
+                    combine(combiner, combiner.reduce(low, high, batch));
+                    batch = new ArrayList<Object>(batchSize);
+                    // rows already reduced need not stay in the persistence context
+                    session.clear();
+                }
+            }
+            if (!batch.isEmpty()) combine(combiner, combiner.reduce(low, high, batch));
+        } finally {
+            results.close();
+        }
+    }
+
+    private static <P> void combine(PartitionCombiner<P, ?> combiner, P partial) {
+        // partial results of concurrent partitions are merged one at a time
+        synchronized (combiner) {
+            combiner.combine(partial);
+        }
+    }
+
+    private Number[] readRange(Session session, String keyPath) {
+        String[] parts = split();
+        StringBuilder hql = new StringBuilder("select min(").append(keyPath).append("), max(").append(keyPath)
+            .append(") ").append(parts[1]);
+        if (parts[2] != null) hql.append(" where (").append(parts[2]).append(')');
+        Query q = session.createQuery(hql.toString());
+        bindParams(q);
+        Object[] result = (Object[]) q.uniqueResult();
+        if (result == null || result[0] == null) return null;
+        return new Number[]{(Number) result[0], (Number) result[1]};
+    }
+
+    /**
+     * @return the select clause, the from clause with its joins, the condition and the
+     * trailing clauses of the outermost query
+     */
+    private String[] split() {
+        String head = query;
+        String tail = null;
+        int tailIndex = firstOf(HqlUtils.indexOfClause(query, "group by"), HqlUtils.indexOfClause(query, "order by"));
+        if (tailIndex >= 0) {
+            head = query.substring(0, tailIndex).trim();
+            tail = query.substring(tailIndex);
+        }
+        String condition = null;
+        int where = HqlUtils.indexOfClause(head, "where");
+        if (where >= 0) {
+            condition = head.substring(HqlUtils.endOfKeyword(head, where, "where")).trim();
+            head = head.substring(0, where).trim();
+        }
+        int from = HqlUtils.indexOfClause(head, "from");
+        return new String[]{head.substring(0, from).trim(), head.substring(from), condition, tail};
+    }
+
+    private static int firstOf(int a, int b) {
+        if (a < 0) return b;
+        if (b < 0) return a;
+        return Math.min(a, b);
+    }
+
+    private void bindParams(Query q) {
+        Set<String> names = new HashSet<String>(Arrays.asList(q.getNamedParameters()));
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            if (!names.contains(param.getKey())) continue;
+            if (param.getValue() instanceof Collection) {
+                q.setParameterList(param.getKey(), (Collection<?>) param.getValue());
+            } else {
+                q.setParameter(param.getKey(), param.getValue());
+            }
+        }
+    }
+}
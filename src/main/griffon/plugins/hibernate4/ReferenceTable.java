@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4;
+
+import griffon.plugins.hibernate4.internal.ReferenceTableFile;
+
+/**
+ * Rows of a reference query kept by a {@link Hibernate4ReferenceCache}. Rows live in a
+ * memory mapped file and are decoded every time they are accessed; callers should keep
+ * the values they use often. Instances are safe for concurrent reads.
+ *
+ * @author Andres Almiray
+ */
+public class ReferenceTable {
+    private final String name;
+    private final ReferenceTableFile file;
+    private final boolean restored;
+
+    ReferenceTable(String name, ReferenceTableFile file, boolean restored) {
+        this.name = name;
+        this.file = file;
+        this.restored = restored;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the result of the version query the rows were read with
+     */
+    public String getVersion() {
+        return file.getVersionToken();
+    }
+
+    /**
+     * @return {@code true} if the rows were mapped from a previous run instead of being queried
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    public int size() {
+        return file.getRowCount();
+    }
+
+    public String[] getColumnNames() {
+        return file.getColumnNames();
+    }
+
+    public int indexOfColumn(String columnName) {
+        String[] columnNames = file.getColumnNames();
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(columnName)) return i;
+        }
+        return -1;
+    }
+
+    public Object getValue(int row, int column) {
+        return file.getValue(row, column);
+    }
+
+    public Object getValue(int row, String columnName) {
+        int column = indexOfColumn(columnName);
+        if (column < 0) throw new IllegalArgumentException("Unknown column '" + columnName + "' in reference table '" + name + "'");
+        return file.getValue(row, column);
+    }
+
+    public Object[] getRow(int row) {
+        return file.getRow(row);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate4.internal;
+
+import griffon.plugins.datasource.DataSourceHolder;
+import org.hibernate.MultiTenancyStrategy;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.jdbc.connections.spi.MultiTenantConnectionProvider;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static griffon.util.GriffonNameUtils.isBlank;
+
+/**
+ * Supplies tenant connections using the DataSources managed by the datasource plugin.
+ * <ul>
+ * <li>{@code SCHEMA} - all tenants share the session factory's DataSource; the schema
+ * of every connection handed out is switched by executing {@code schemaStatement}.</li>
+ * <li>{@code DATABASE} - every tenant is served by its own DataSource, as configured
+ * in {@code DataSource.groovy}.</li>
+ * </ul>
+ * Tenant identifiers are mapped to schema or datasource names through {@code tenants};
+ * identifiers not found in that map are used verbatim.
+ *
+ * @author Andres Almiray
+ */
+public class DataSourceMultiTenantConnectionProvider implements MultiTenantConnectionProvider {
+    private static final long serialVersionUID = 1L;
+    public static final String DEFAULT_SCHEMA_STATEMENT = "SET SCHEMA %s";
+
+    private final MultiTenancyStrategy strategy;
+    private final DataSource defaultDataSource;
+    private final String defaultTenant;
+    private final String schemaStatement;
+    private final Map<String, String> tenants;
+
+    public DataSourceMultiTenantConnectionProvider(MultiTenancyStrategy strategy, DataSource defaultDataSource, String defaultTenant, String schemaStatement, Map<String, String> tenants) {
+        if (strategy != MultiTenancyStrategy.SCHEMA && strategy != MultiTenancyStrategy.DATABASE) {
+            throw new IllegalArgumentException("Unsupported multi-tenancy strategy " + strategy);
+        }
+        this.strategy = strategy;
+        this.defaultDataSource = defaultDataSource;
+        this.defaultTenant = defaultTenant;
+        this.schemaStatement = isBlank(schemaStatement) ? DEFAULT_SCHEMA_STATEMENT : schemaStatement;
+        this.tenants = tenants != null ? new LinkedHashMap<String, String>(tenants) : Collections.<String, String>emptyMap();
+    }
+
+    public MultiTenancyStrategy getStrategy() {
+        return strategy;
+    }
+
+    public Connection getAnyConnection() throws SQLException {
+        if (!isBlank(defaultTenant)) return getConnection(defaultTenant);
+        return defaultDataSource.getConnection();
+    }
+
+    public void releaseAnyConnection(Connection connection) throws SQLException {
+        connection.close();
+    }
+
+    public Connection getConnection(String tenantIdentifier) throws SQLException {
+        String target = resolve(tenantIdentifier);
+        if (strategy == MultiTenancyStrategy.DATABASE) {
+            DataSource dataSource = DataSourceHolder.getInstance().fetchDataSource(target);
+            if (dataSource == null) {
+                throw new SQLException("No DataSource configured for tenant '" + tenantIdentifier + "'");
+            }
+            return dataSource.getConnection();
+        }
+
+        Connection connection = defaultDataSource.getConnection();
+        Statement statement = null;
+        try {
+            // pooled connections may carry the schema of a previous tenant, so always switch
+            statement = connection.createStatement();
+            statement.execute(String.format(schemaStatement, target));
+        } catch (SQLException e) {
+            JdbcUtils.closeConnection(connection);
+            throw e;
+        } finally {
+            JdbcUtils.closeStatement(statement);
+        }
+        return connection;
+    }
+
+    public void releaseConnection(String tenantIdentifier, Connection connection) throws SQLException {
+        connection.close();
+    }
+
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public boolean isUnwrappableAs(Class unwrapType) {
+        return MultiTenantConnectionProvider.class.equals(unwrapType) ||
+            DataSourceMultiTenantConnectionProvider.class.isAssignableFrom(unwrapType);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> unwrapType) {
+        if (isUnwrappableAs(unwrapType)) return (T) this;
+        throw new UnknownUnwrapTypeException(unwrapType);
+    }
+
+    private String resolve(String tenantIdentifier) {
+        String target = tenants.get(tenantIdentifier);
+        return isBlank(target) ? tenantIdentifier : target;
+    }
+}
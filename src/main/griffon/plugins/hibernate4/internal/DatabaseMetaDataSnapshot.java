@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate4.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.*;
+
+/**
+ * Immutable copy of the most commonly used {@code DatabaseMetaData} properties,
+ * optionally including the tables and columns found in the database.
+ * Instances are created and cached by {@link JdbcUtils#snapshotDatabaseMetaData}.
+ *
+ * @author Andres Almiray
+ */
+public final class DatabaseMetaDataSnapshot {
+    private final Map<String, Object> properties;
+    private final Set<String> sqlKeywords;
+    private final Map<String, List<String>> tables;
+
+    DatabaseMetaDataSnapshot(DatabaseMetaData metaData, boolean includeTables) throws SQLException {
+        Map<String, Object> props = new LinkedHashMap<String, Object>();
+        props.put("getDatabaseProductName", metaData.getDatabaseProductName());
+        props.put("getDatabaseProductVersion", metaData.getDatabaseProductVersion());
+        props.put("getDatabaseMajorVersion", metaData.getDatabaseMajorVersion());
+        props.put("getDatabaseMinorVersion", metaData.getDatabaseMinorVersion());
+        props.put("getDriverName", metaData.getDriverName());
+        props.put("getDriverVersion", metaData.getDriverVersion());
+        props.put("getDriverMajorVersion", metaData.getDriverMajorVersion());
+        props.put("getDriverMinorVersion", metaData.getDriverMinorVersion());
+        props.put("getURL", metaData.getURL());
+        props.put("getSQLKeywords", metaData.getSQLKeywords());
+        props.put("getIdentifierQuoteString", metaData.getIdentifierQuoteString());
+        props.put("storesUpperCaseIdentifiers", metaData.storesUpperCaseIdentifiers());
+        props.put("storesLowerCaseIdentifiers", metaData.storesLowerCaseIdentifiers());
+        props.put("storesMixedCaseIdentifiers", metaData.storesMixedCaseIdentifiers());
+        props.put("supportsGetGeneratedKeys", metaData.supportsGetGeneratedKeys());
+        props.put("supportsBatchUpdates", metaData.supportsBatchUpdates());
+        this.properties = Collections.unmodifiableMap(props);
+
+        Set<String> keywords = new LinkedHashSet<String>();
+        String keywordList = metaData.getSQLKeywords();
+        if (keywordList != null) {
+            for (String keyword : keywordList.split(",")) {
+                if (keyword.trim().length() > 0) keywords.add(keyword.trim().toUpperCase());
+            }
+        }
+        this.sqlKeywords = Collections.unmodifiableSet(keywords);
+        this.tables = includeTables ? readTables(metaData) : null;
+    }
+
+    public String getDatabaseProductName() {
+        return (String) properties.get("getDatabaseProductName");
+    }
+
+    public String getDatabaseProductVersion() {
+        return (String) properties.get("getDatabaseProductVersion");
+    }
+
+    public int getDatabaseMajorVersion() {
+        return (Integer) properties.get("getDatabaseMajorVersion");
+    }
+
+    public int getDatabaseMinorVersion() {
+        return (Integer) properties.get("getDatabaseMinorVersion");
+    }
+
+    public String getDriverName() {
+        return (String) properties.get("getDriverName");
+    }
+
+    public String getDriverVersion() {
+        return (String) properties.get("getDriverVersion");
+    }
+
+    public String getURL() {
+        return (String) properties.get("getURL");
+    }
+
+    public String getIdentifierQuoteString() {
+        return (String) properties.get("getIdentifierQuoteString");
+    }
+
+    public boolean storesUpperCaseIdentifiers() {
+        return (Boolean) properties.get("storesUpperCaseIdentifiers");
+    }
+
+    public boolean storesLowerCaseIdentifiers() {
+        return (Boolean) properties.get("storesLowerCaseIdentifiers");
+    }
+
+    public Set<String> getSqlKeywords() {
+        return sqlKeywords;
+    }
+
+    public boolean hasTables() {
+        return tables != null;
+    }
+
+    /**
+     * @return table names mapped to their column names, or an empty map if tables
+     *         were not requested when the snapshot was taken
+     */
+    public Map<String, List<String>> getTables() {
+        return tables != null ? tables : Collections.<String, List<String>>emptyMap();
+    }
+
+    /**
+     * Returns the value of a no-args {@code DatabaseMetaData} method captured by
+     * this snapshot, for example {@code "getDatabaseProductName"}.
+     *
+     * @param metaDataMethodName the name of the DatabaseMetaData method
+     * @return the captured value or {@code null} if the property was not captured
+     */
+    public Object getProperty(String metaDataMethodName) {
+        return properties.get(metaDataMethodName);
+    }
+
+    public boolean hasProperty(String metaDataMethodName) {
+        return properties.containsKey(metaDataMethodName);
+    }
+
+    /**
+     * Exposes this snapshot as a {@code DatabaseMetaData} instance, suitable for APIs such as
+     * Hibernate's {@code DialectResolver}. Methods not captured by the snapshot throw
+     * {@code SQLFeatureNotSupportedException}.
+     */
+    public DatabaseMetaData asDatabaseMetaData() {
+        return (DatabaseMetaData) Proxy.newProxyInstance(
+            DatabaseMetaDataSnapshot.class.getClassLoader(),
+            new Class<?>[]{DatabaseMetaData.class},
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if ((args == null || args.length == 0) && properties.containsKey(name)) {
+                        return properties.get(name);
+                    }
+                    if ("toString".equals(name) && args == null) {
+                        return DatabaseMetaDataSnapshot.this.toString();
+                    }
+                    if ("hashCode".equals(name) && args == null) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if ("equals".equals(name) && args != null && args.length == 1) {
+                        return proxy == args[0];
+                    }
+                    throw new SQLFeatureNotSupportedException("DatabaseMetaData." + name + " is not available in snapshot");
+                }
+            });
+    }
+
+    @Override
+    public String toString() {
+        return "DatabaseMetaDataSnapshot[" + getDatabaseProductName() + " " + getDatabaseProductVersion() +
+            ", " + getDriverName() + " " + getDriverVersion() + "]";
+    }
+
+    private static Map<String, List<String>> readTables(DatabaseMetaData metaData) throws SQLException {
+        Map<String, List<String>> tables = new LinkedHashMap<String, List<String>>();
+        ResultSet rs = null;
+        try {
+            rs = metaData.getTables(null, null, "%", new String[]{"TABLE"});
+            while (rs.next()) {
+                tables.put(rs.getString("TABLE_NAME"), new ArrayList<String>());
+            }
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+        try {
+            // a single call for all columns instead of one round trip per table
+            rs = metaData.getColumns(null, null, "%", "%");
+            while (rs.next()) {
+                List<String> columns = tables.get(rs.getString("TABLE_NAME"));
+                if (columns != null) columns.add(rs.getString("COLUMN_NAME"));
+            }
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+        }
+        for (Map.Entry<String, List<String>> entry : tables.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(tables);
+    }
+}
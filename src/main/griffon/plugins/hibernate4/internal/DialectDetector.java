@@ -22,8 +22,6 @@ import org.hibernate.service.jdbc.dialect.internal.StandardDialectResolver;
 import org.hibernate.service.jdbc.dialect.spi.DialectResolver;
 
 import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.SQLException;
 
 /**
  * @author Andres Almiray
@@ -38,25 +36,15 @@ public class DialectDetector {
     }
 
     public String getDialect() {
-        Connection connection = null;
+        DatabaseMetaDataSnapshot metaData = JdbcUtils.snapshotDatabaseMetaData(dataSource);
+        Dialect hibernateDialect = dialectResolver.resolveDialect(metaData.asDatabaseMetaData());
+        String hibernateDialectClassName = hibernateDialect != null ? hibernateDialect.getClass().getName() : null;
 
-        try {
-            String dbName = (String) JdbcUtils.extractDatabaseMetaData(dataSource, "getDatabaseProductName");
-            connection = dataSource.getConnection();
-
-            Dialect hibernateDialect = dialectResolver.resolveDialect(connection.getMetaData());
-            String hibernateDialectClassName = hibernateDialect.getClass().getName();
-
-            if (GriffonNameUtils.isBlank(hibernateDialectClassName)) {
-                throw new DatabaseException(
-                        "Could not determine Hibernate dialect for database name [" + dbName + "]!");
-            }
-
-            return hibernateDialectClassName;
-        } catch (SQLException e) {
-            throw new DatabaseException(e);
-        } finally {
-            JdbcUtils.closeConnection(connection);
+        if (GriffonNameUtils.isBlank(hibernateDialectClassName)) {
+            throw new DatabaseException(
+                    "Could not determine Hibernate dialect for database name [" + metaData.getDatabaseProductName() + "]!");
         }
+
+        return hibernateDialectClassName;
     }
 }
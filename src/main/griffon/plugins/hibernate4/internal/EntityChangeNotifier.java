@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate4.internal;
+
+import griffon.core.GriffonApplication;
+import griffon.plugins.hibernate4.Hibernate4EntityChangeSet;
+import griffon.util.ApplicationHolder;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.metamodel.source.MetadataImplementor;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the inserts, updates and deletes of committed transactions per entity and publishes
+ * them as a single application event per interval, on the UI thread. The event receives
+ * the session factory name and a {@code Map<String, Hibernate4EntityChangeSet>} keyed by
+ * entity name.
+ *
+ * @author Andres Almiray
+ */
+public class EntityChangeNotifier implements Integrator, PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOG = LoggerFactory.getLogger(EntityChangeNotifier.class);
+
+    private final String sessionFactoryName;
+    private final String eventName;
+    private final long interval;
+    private final int maxIds;
+    private final Object lock = new Object();
+    private Map<String, Hibernate4EntityChangeSet> pending = new LinkedHashMap<String, Hibernate4EntityChangeSet>();
+    private final Map<SessionImplementor, TransactionChanges> transactions = new WeakHashMap<SessionImplementor, TransactionChanges>();
+    private ScheduledExecutorService scheduler;
+
+    public EntityChangeNotifier(String sessionFactoryName, String eventName, long interval, int maxIds) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.eventName = eventName;
+        this.interval = Math.max(1, interval);
+        this.maxIds = Math.max(0, maxIds);
+    }
+
+    public void onPostInsert(PostInsertEvent event) {
+        changesOf(event.getSession()).changeSetFor(event.getPersister().getEntityName()).inserted(event.getId());
+    }
+
+    public void onPostUpdate(PostUpdateEvent event) {
+        changesOf(event.getSession()).changeSetFor(event.getPersister().getEntityName()).updated(event.getId());
+    }
+
+    public void onPostDelete(PostDeleteEvent event) {
+        changesOf(event.getSession()).changeSetFor(event.getPersister().getEntityName()).deleted(event.getId());
+    }
+
+    /*
+     * Changes are kept per session until its transaction completes; Hibernate 4.1 also
+     * notifies post-commit listeners of rolled back transactions, so those cannot be used.
+     */
+    private TransactionChanges changesOf(EventSource session) {
+        synchronized (transactions) {
+            TransactionChanges changes = transactions.get(session);
+            if (changes == null) {
+                changes = new TransactionChanges();
+                transactions.put(session, changes);
+                session.getActionQueue().registerProcess(changes);
+            }
+            return changes;
+        }
+    }
+
+    public void integrate(Configuration configuration, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        register(serviceRegistry);
+    }
+
+    public void integrate(MetadataImplementor metadata, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        register(serviceRegistry);
+    }
+
+    public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        synchronized (lock) {
+            if (scheduler != null) scheduler.shutdownNow();
+            scheduler = null;
+        }
+        flush();
+    }
+
+    private void register(SessionFactoryServiceRegistry serviceRegistry) {
+        EventListenerRegistry listeners = serviceRegistry.getService(EventListenerRegistry.class);
+        listeners.appendListeners(EventType.POST_INSERT, this);
+        listeners.appendListeners(EventType.POST_UPDATE, this);
+        listeners.appendListeners(EventType.POST_DELETE, this);
+
+        synchronized (lock) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hibernate4-change-events-" + sessionFactoryName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void committed(Map<String, Hibernate4EntityChangeSet> changes) {
+        synchronized (lock) {
+            for (Hibernate4EntityChangeSet changeSet : changes.values()) {
+                Hibernate4EntityChangeSet existing = pending.get(changeSet.getEntityName());
+                if (existing == null) {
+                    pending.put(changeSet.getEntityName(), changeSet);
+                } else {
+                    existing.merge(changeSet);
+                }
+            }
+        }
+    }
+
+    private void flush() {
+        final Map<String, Hibernate4EntityChangeSet> changes;
+        synchronized (lock) {
+            if (pending.isEmpty()) return;
+            changes = pending;
+            pending = new LinkedHashMap<String, Hibernate4EntityChangeSet>();
+        }
+        final GriffonApplication app = ApplicationHolder.getApplication();
+        if (app == null) return;
+        try {
+            app.execInsideUIAsync(new Runnable() {
+                public void run() {
+                    app.event(eventName, Arrays.<Object>asList(sessionFactoryName, changes));
+                }
+            });
+        } catch (RuntimeException e) {
+            LOG.warn("Could not publish entity changes for '" + sessionFactoryName + "'", e);
+        }
+    }
+
+    private class TransactionChanges implements AfterTransactionCompletionProcess {
+        private final Map<String, Hibernate4EntityChangeSet> changes = new LinkedHashMap<String, Hibernate4EntityChangeSet>();
+
+        private Hibernate4EntityChangeSet changeSetFor(String entityName) {
+            Hibernate4EntityChangeSet changeSet = changes.get(entityName);
+            if (changeSet == null) {
+                changeSet = new Hibernate4EntityChangeSet(entityName, maxIds);
+                changes.put(entityName, changeSet);
+            }
+            return changeSet;
+        }
+
+        public void doAfterTransactionCompletion(boolean success, SessionImplementor session) {
+            synchronized (transactions) {
+                transactions.remove(session);
+            }
+            if (success && !changes.isEmpty()) committed(changes);
+        }
+    }
+}
@@ -16,26 +16,40 @@
 package griffon.plugins.hibernate4.internal;
 
 import griffon.util.ConfigUtils;
-import griffon.util.RunnableWithArgs;
-import griffon.util.RunnableWithArgsClosure;
 import groovy.util.ConfigObject;
 import org.hibernate.HibernateException;
 import org.hibernate.Interceptor;
+import org.hibernate.MultiTenancyStrategy;
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
+import org.hibernate.bytecode.instrumentation.internal.FieldInterceptionHelper;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.cfg.Environment;
+import org.hibernate.cfg.Mappings;
 import org.hibernate.cfg.NamingStrategy;
+import org.hibernate.context.spi.CurrentTenantIdentifierResolver;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.mapping.FetchProfile;
+import org.hibernate.mapping.MetadataSource;
+import org.hibernate.service.BootstrapServiceRegistryBuilder;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.service.ServiceRegistryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+import javax.persistence.MappedSuperclass;
 import javax.sql.DataSource;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.Enumeration;
-import java.util.Map;
-import java.util.Properties;
+import java.util.*;
 
 import static griffon.util.GriffonNameUtils.isBlank;
-import static org.codehaus.groovy.runtime.DefaultGroovyMethods.eachLine;
 
 /**
  * Sets up a shared Hibernate SessionFactory.
@@ -49,11 +63,20 @@ public class HibernateConfigurationHelper {
     public static final String ENTITY_INTERCEPTOR = "entityInterceptor";
     public static final String NAMING_STRATEGY = "namingStrategy";
     public static final String PROPS = "props";
+    public static final String MULTI_TENANCY = "multiTenancy";
+    public static final String CHANGE_EVENTS = "changeEvents";
+    public static final String REPLICA = "replica";
+    public static final String FETCH_PLANS = "fetchPlans";
+    public static final String SESSION_GUARD = "sessionGuard";
+    public static final String QUERY_PLAN_CACHE = "queryPlanCache";
+    public static final String NAMED_QUERIES = "namedQueries";
 
     private final ConfigObject sessionConfig;
     private final ConfigObject dataSourceConfig;
     private final String dataSourceName;
     private final DataSource dataSource;
+    private final List<Integrator> integrators = new ArrayList<Integrator>();
+    private final Set<String> enhancedClasses = new LinkedHashSet<String>();
 
     public HibernateConfigurationHelper(ConfigObject sessionConfig, ConfigObject dataSourceConfig, String dataSourceName, DataSource dataSource) {
         this.sessionConfig = sessionConfig;
@@ -74,6 +97,18 @@ public class HibernateConfigurationHelper {
         return dataSourceConfig;
     }
 
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @return names of the entity classes that were enhanced at build time and are
+     * loaded in their enhanced form
+     */
+    public Set<String> getEnhancedClasses() {
+        return Collections.unmodifiableSet(enhancedClasses);
+    }
+
     public Configuration buildConfiguration() throws Exception {
         // Create Configuration instance.
         Configuration config = newConfiguration();
@@ -81,12 +116,50 @@ public class HibernateConfigurationHelper {
         applyEntityInterceptor(config);
         applyNamingStrategy(config);
         applyProperties(config);
+        applyQueryPlanCache(config);
+        applyNamedQueryCheck(config);
         applyDialect(config);
+        applyMultiTenancy(config);
+        applyChangeEvents();
+        applySessionGuard();
+        applyReplica();
         applyMappings(config);
+        applyAnnotatedClasses(config);
+        applyFetchPlans(config);
+        detectEnhancedClasses();
 
         return config;
     }
 
+    /**
+     * Builds a SessionFactory for a Configuration created by {@link #buildConfiguration()},
+     * registering the integrators required by the session configuration.
+     */
+    public SessionFactory buildSessionFactory(Configuration config) throws HibernateException {
+        Environment.verifyProperties(config.getProperties());
+        ConfigurationHelper.resolvePlaceHolders(config.getProperties());
+        BootstrapServiceRegistryBuilder bootstrap = new BootstrapServiceRegistryBuilder();
+        for (Integrator integrator : integrators) {
+            bootstrap.with(integrator);
+        }
+        final ServiceRegistry serviceRegistry = new ServiceRegistryBuilder(bootstrap.build())
+            .applySettings(config.getProperties())
+            .buildServiceRegistry();
+        config.setSessionFactoryObserver(new SessionFactoryObserver() {
+            private static final long serialVersionUID = 1L;
+
+            public void sessionFactoryCreated(SessionFactory factory) {
+            }
+
+            public void sessionFactoryClosed(SessionFactory factory) {
+                ServiceRegistryBuilder.destroy(serviceRegistry);
+            }
+        });
+        SessionFactory sessionFactory = config.buildSessionFactory(serviceRegistry);
+        checkNamedQueries(config, sessionFactory);
+        return sessionFactory;
+    }
+
     private void applyEntityInterceptor(Configuration config) {
         Object entityInterceptor = ConfigUtils.getConfigValue(sessionConfig, ENTITY_INTERCEPTOR);
         if (entityInterceptor instanceof Class) {
@@ -123,6 +196,49 @@ public class HibernateConfigurationHelper {
         }
     }
 
+    private void applyQueryPlanCache(Configuration config) {
+        Object queryPlanCache = ConfigUtils.getConfigValue(sessionConfig, QUERY_PLAN_CACHE);
+        if (!(queryPlanCache instanceof Map)) return;
+        Object maxSize = ((Map<?, ?>) queryPlanCache).get("maxSize");
+        Object parameterMetadataMaxSize = ((Map<?, ?>) queryPlanCache).get("parameterMetadataMaxSize");
+        if (maxSize != null) {
+            config.setProperty(Environment.QUERY_PLAN_CACHE_MAX_SIZE, maxSize.toString());
+        }
+        if (parameterMetadataMaxSize != null) {
+            config.setProperty(Environment.QUERY_PLAN_CACHE_PARAMETER_METADATA_MAX_SIZE, parameterMetadataMaxSize.toString());
+        }
+    }
+
+    private void applyNamedQueryCheck(Configuration config) {
+        // named queries are checked in parallel once the SessionFactory has been built
+        if (isNamedQueryCheckEnabled()) config.setProperty(Environment.QUERY_STARTUP_CHECKING, "false");
+    }
+
+    private boolean isNamedQueryCheckEnabled() {
+        Object namedQueries = ConfigUtils.getConfigValue(sessionConfig, NAMED_QUERIES);
+        return namedQueries instanceof Map && Boolean.TRUE.equals(((Map<?, ?>) namedQueries).get("parallelCheck"));
+    }
+
+    private void checkNamedQueries(Configuration config, SessionFactory sessionFactory) {
+        if (!isNamedQueryCheckEnabled()) return;
+        Map<?, ?> namedQueries = (Map<?, ?>) ConfigUtils.getConfigValue(sessionConfig, NAMED_QUERIES);
+        Object parallelism = namedQueries.get("parallelism");
+        NamedQueryValidator validator = new NamedQueryValidator(dataSourceName,
+            parallelism instanceof Number ? ((Number) parallelism).intValue() : Runtime.getRuntime().availableProcessors());
+        Map<String, HibernateException> errors = validator.validate(config, (SessionFactoryImplementor) sessionFactory);
+        if (errors.isEmpty()) return;
+
+        StringBuilder message = new StringBuilder("Errors in named queries of '").append(dataSourceName).append("':");
+        for (Map.Entry<String, HibernateException> error : new TreeMap<String, HibernateException>(errors).entrySet()) {
+            LOG.error("Error in named query: " + error.getKey(), error.getValue());
+            message.append("\n  ").append(error.getKey()).append(": ").append(error.getValue().getMessage());
+        }
+        if (!Boolean.FALSE.equals(namedQueries.get("failOnError"))) {
+            sessionFactory.close();
+            throw new HibernateException(message.toString());
+        }
+    }
+
     private void applyDialect(Configuration config) {
         Object dialect = ConfigUtils.getConfigValue(sessionConfig, "dialect");
         if (dialect instanceof Class) {
@@ -135,22 +251,177 @@ public class HibernateConfigurationHelper {
         }
     }
 
-    private void applyMappings(final Configuration config) {
+    private void applyMultiTenancy(Configuration config) {
+        Object multiTenancy = ConfigUtils.getConfigValue(sessionConfig, MULTI_TENANCY);
+        if (!(multiTenancy instanceof Map) || ((Map<?, ?>) multiTenancy).isEmpty()) return;
+        Map<?, ?> settings = (Map<?, ?>) multiTenancy;
+
+        MultiTenancyStrategy strategy = MultiTenancyStrategy.valueOf(String.valueOf(settings.get("strategy")).toUpperCase());
+        final String defaultTenant = settings.get("defaultTenant") != null ? String.valueOf(settings.get("defaultTenant")) : null;
+        Object schemaStatement = settings.get("schemaStatement");
+        Object tenants = settings.get("tenants");
+
+        config.setProperty(Environment.MULTI_TENANT, strategy.name());
+        config.getProperties().put(Environment.MULTI_TENANT_CONNECTION_PROVIDER, new DataSourceMultiTenantConnectionProvider(
+            strategy,
+            dataSource,
+            defaultTenant,
+            schemaStatement != null ? schemaStatement.toString() : null,
+            toStringMap(tenants)));
+        if (!isBlank(defaultTenant)) {
+            // lets sessions opened without an explicit tenant (e.g, BootstrapHibernate4) use the default one
+            config.setCurrentTenantIdentifierResolver(new CurrentTenantIdentifierResolver() {
+                public String resolveCurrentTenantIdentifier() {
+                    return defaultTenant;
+                }
+
+                public boolean validateExistingCurrentSessions() {
+                    return false;
+                }
+            });
+        }
+    }
+
+    private void applyChangeEvents() {
+        Object changeEvents = ConfigUtils.getConfigValue(sessionConfig, CHANGE_EVENTS);
+        if (!(changeEvents instanceof Map) || ((Map<?, ?>) changeEvents).isEmpty()) return;
+        Map<?, ?> settings = (Map<?, ?>) changeEvents;
+        if (!Boolean.TRUE.equals(settings.get("enabled"))) return;
+
+        Object eventName = settings.get("eventName");
+        Object interval = settings.get("interval");
+        Object maxIds = settings.get("maxIds");
+        integrators.add(new EntityChangeNotifier(
+            dataSourceName,
+            eventName != null ? eventName.toString() : "Hibernate4EntitiesChanged",
+            interval instanceof Number ? ((Number) interval).longValue() : 250L,
+            maxIds instanceof Number ? ((Number) maxIds).intValue() : 1000));
+    }
+
+    private void applySessionGuard() {
+        Object sessionGuard = ConfigUtils.getConfigValue(sessionConfig, SESSION_GUARD);
+        if (!(sessionGuard instanceof Map) || !Boolean.TRUE.equals(((Map<?, ?>) sessionGuard).get("enabled"))) return;
+        integrators.add(new SessionGuardListener());
+    }
+
+    private void applyFetchPlans(Configuration config) {
+        Object fetchPlans = ConfigUtils.getConfigValue(sessionConfig, FETCH_PLANS);
+        if (!(fetchPlans instanceof Map)) return;
+        Mappings mappings = config.createMappings();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) fetchPlans).entrySet()) {
+            String name = String.valueOf(entry.getKey());
+            Object plan = entry.getValue();
+            Object join = plan instanceof Map ? ((Map<?, ?>) plan).get("join") : null;
+            if (!(join instanceof Collection) || ((Collection<?>) join).isEmpty()) {
+                throw new IllegalArgumentException("Fetch plan '" + name + "' must list the associations to join, i.e, join = ['com.acme.Person.addresses']");
+            }
+            FetchProfile profile = mappings.findOrCreateFetchProfile(name, MetadataSource.OTHER);
+            for (Object path : (Collection<?>) join) {
+                String association = String.valueOf(path);
+                int dot = association.lastIndexOf('.');
+                if (dot < 1 || dot == association.length() - 1) {
+                    throw new IllegalArgumentException("Invalid association '" + association + "' in fetch plan '" + name + "'");
+                }
+                // Hibernate 4.1 fetch profiles only support the join style
+                profile.addFetch(association.substring(0, dot), association.substring(dot + 1), "join");
+            }
+        }
+    }
+
+    private void applyReplica() {
+        Object replica = ConfigUtils.getConfigValue(sessionConfig, REPLICA);
+        if (!(replica instanceof Map)) return;
+        Object tables = ((Map<?, ?>) replica).get("tables");
+        if (!(tables instanceof Map) || ((Map<?, ?>) tables).isEmpty()) return;
+        List<String> tableNames = new ArrayList<String>();
+        for (Object tableName : ((Map<?, ?>) tables).keySet()) {
+            tableNames.add(String.valueOf(tableName));
+        }
+        integrators.add(new ReplicaChangeLog(tableNames));
+    }
+
+    private static Map<String, String> toStringMap(Object value) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+        }
+        return map;
+    }
+
+    private void applyMappings(Configuration config) {
+        for (String resource : readIndex("META-INF/hibernate4/mappings.txt")) {
+            config.addResource(resource);
+        }
+    }
+
+    private void applyAnnotatedClasses(Configuration config) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Set<String> classNames = new LinkedHashSet<String>(readIndex("META-INF/hibernate4/entities.txt"));
+
+        for (String className : classNames) {
+            Class<?> annotatedClass;
+            try {
+                annotatedClass = classLoader.loadClass(className);
+            } catch (ClassNotFoundException e) {
+                LOG.warn("Annotated entity " + className + " could not be loaded; run 'griffon package' again", e);
+                continue;
+            }
+            // the index is built from class file contents and may list classes that merely refer to these annotations
+            if (annotatedClass.isAnnotationPresent(Entity.class) ||
+                annotatedClass.isAnnotationPresent(MappedSuperclass.class) ||
+                annotatedClass.isAnnotationPresent(Embeddable.class)) {
+                config.addAnnotatedClass(annotatedClass);
+            }
+        }
+        if (!classNames.isEmpty() && LOG.isDebugEnabled()) {
+            LOG.debug("SessionFactory '" + dataSourceName + "' indexes annotated classes " + classNames);
+        }
+    }
+
+    private void detectEnhancedClasses() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        for (String className : readIndex("META-INF/hibernate4/instrumented.txt")) {
+            try {
+                if (FieldInterceptionHelper.isInstrumented(classLoader.loadClass(className))) {
+                    enhancedClasses.add(className);
+                } else {
+                    // lazy properties of this entity will be fetched eagerly
+                    LOG.warn("Entity " + className + " was listed as enhanced but its class file is not; run 'griffon package' again");
+                }
+            } catch (ClassNotFoundException e) {
+                LOG.warn("Enhanced entity " + className + " could not be loaded", e);
+            }
+        }
+        if (!enhancedClasses.isEmpty() && LOG.isDebugEnabled()) {
+            LOG.debug("SessionFactory '" + dataSourceName + "' uses " + enhancedClasses.size() + " enhanced entities " + enhancedClasses);
+        }
+    }
+
+    /*
+     * Returns the trimmed, non-blank lines of every copy of the given classpath resource.
+     */
+    private List<String> readIndex(String resource) {
+        List<String> lines = new ArrayList<String>();
         try {
-            Enumeration<URL> urls = getClass().getClassLoader().getResources("META-INF/hibernate4/mappings.txt");
+            Enumeration<URL> urls = getClass().getClassLoader().getResources(resource);
             while (urls.hasMoreElements()) {
-                eachLine(urls.nextElement(), new RunnableWithArgsClosure(new RunnableWithArgs() {
-                    @Override
-                    public void run(Object[] args) {
-                        String line = ((String) args[0]).trim();
-                        if (isBlank(line)) return;
-                        config.addResource(line);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(urls.nextElement().openStream(), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (!isBlank(line)) lines.add(line);
                     }
-                }));
+                } finally {
+                    reader.close();
+                }
             }
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
+        return lines;
     }
 
     private Object newInstanceOf(String className) {
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4.internal;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Locates the clauses of HQL queries that are extended with additional conditions.</p>
+ *
+ * @author Andres Almiray
+ */
+public abstract class HqlUtils {
+    /**
+     * Finds the clause starting with the given keyword, i.e, {@code where} or {@code order by},
+     * in the outermost query, skipping occurrences within subqueries, parenthesized
+     * expressions and string literals.
+     *
+     * @return the position of the keyword, or -1 if the outermost query has no such clause
+     */
+    public static int indexOfClause(String hql, String keyword) {
+        Pattern pattern = Pattern.compile("\\b" + keyword.trim().replaceAll("\\s+", "\\\\s+") + "\\b", Pattern.CASE_INSENSITIVE);
+        boolean[] nested = nestedPositions(hql);
+        Matcher matcher = pattern.matcher(hql);
+        while (matcher.find()) {
+            if (!nested[matcher.start()]) return matcher.start();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position right after the keyword found at {@code index}
+     */
+    public static int endOfKeyword(String hql, int index, String keyword) {
+        Matcher matcher = Pattern.compile(keyword.trim().replaceAll("\\s+", "\\\\s+"), Pattern.CASE_INSENSITIVE).matcher(hql);
+        if (!matcher.find(index) || matcher.start() != index) {
+            throw new IllegalArgumentException("No '" + keyword + "' at " + index + " of " + hql);
+        }
+        return matcher.end();
+    }
+
+    /**
+     * Converts a bound of a numeric key to the type of the key, as Hibernate binds a
+     * parameter with the type of the property it is compared with.
+     *
+     * @param keyClass the class of the values read for the key, i.e, by {@code min(key)}
+     */
+    public static Object toKeyValue(long value, Class<?> keyClass) {
+        if (keyClass == Integer.class) return (int) value;
+        if (keyClass == Short.class) return (short) value;
+        if (keyClass == Byte.class) return (byte) value;
+        if (keyClass == BigInteger.class) return BigInteger.valueOf(value);
+        if (keyClass == BigDecimal.class) return BigDecimal.valueOf(value);
+        return value;
+    }
+
+    private static boolean[] nestedPositions(String hql) {
+        boolean[] nested = new boolean[hql.length()];
+        boolean literal = false;
+        int depth = 0;
+        for (int i = 0; i < hql.length(); i++) {
+            char c = hql.charAt(i);
+            if (c == '\'') {
+                // an escaped quote ('') closes and reopens the literal
+                literal = !literal;
+            } else if (!literal && c == '(') {
+                depth++;
+            } else if (!literal && c == ')') {
+                depth = Math.max(0, depth - 1);
+            }
+            nested[i] = literal || depth > 0 || c == '\'';
+        }
+        return nested;
+    }
+}
@@ -23,6 +23,9 @@ import javax.sql.DataSource;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.*;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>Generic utility methods for working with JDBC.</p>
@@ -35,6 +38,8 @@ import java.sql.*;
  */
 public abstract class JdbcUtils {
     private static final Logger LOG = LoggerFactory.getLogger(HibernateConfigurationHelper.class);
+    private static final Map<DataSource, DatabaseMetaDataSnapshot> SNAPSHOTS = new WeakHashMap<DataSource, DatabaseMetaDataSnapshot>();
+    private static final Map<String, Method> METADATA_METHODS = new ConcurrentHashMap<String, Method>();
 
     /**
      * Close the given JDBC Connection and ignore any thrown exception.
@@ -149,7 +154,8 @@ public abstract class JdbcUtils {
 
     /**
      * Call the specified method on DatabaseMetaData for the given DataSource,
-     * and extract the invocation result.
+     * and extract the invocation result. Properties captured by the cached
+     * {@link DatabaseMetaDataSnapshot} are served without opening a connection.
      *
      * @param dataSource         the DataSource to extract meta data for
      * @param metaDataMethodName the name of the DatabaseMetaData method to call
@@ -160,11 +166,19 @@ public abstract class JdbcUtils {
      */
     public static Object extractDatabaseMetaData(DataSource dataSource, final String metaDataMethodName)
             throws MetaDataAccessException {
+        DatabaseMetaDataSnapshot snapshot = snapshotDatabaseMetaData(dataSource);
+        if (snapshot.hasProperty(metaDataMethodName)) {
+            return snapshot.getProperty(metaDataMethodName);
+        }
         return extractDatabaseMetaData(dataSource,
                 new DatabaseMetaDataCallback() {
                     public Object processMetaData(DatabaseMetaData dbmd) throws SQLException, MetaDataAccessException {
                         try {
-                            Method method = DatabaseMetaData.class.getMethod(metaDataMethodName, (Class[]) null);
+                            Method method = METADATA_METHODS.get(metaDataMethodName);
+                            if (method == null) {
+                                method = DatabaseMetaData.class.getMethod(metaDataMethodName, (Class[]) null);
+                                METADATA_METHODS.put(metaDataMethodName, method);
+                            }
                             return method.invoke(dbmd, (Object[]) null);
                         } catch (NoSuchMethodException ex) {
                             throw new MetaDataAccessException("No method named '" + metaDataMethodName +
@@ -182,4 +196,56 @@ public abstract class JdbcUtils {
                     }
                 });
     }
+
+    /**
+     * Collects a {@link DatabaseMetaDataSnapshot} for the given DataSource using a single
+     * connection. The snapshot is cached per DataSource; subsequent calls return the cached
+     * instance unless table information is requested and was not captured before.
+     *
+     * @param dataSource    the DataSource to extract meta data for
+     * @param includeTables whether tables and their columns should be captured too
+     * @return a snapshot of the database meta data
+     * @throws MetaDataAccessException if we couldn't access the DatabaseMetaData
+     */
+    public static DatabaseMetaDataSnapshot snapshotDatabaseMetaData(DataSource dataSource, final boolean includeTables)
+            throws MetaDataAccessException {
+        synchronized (SNAPSHOTS) {
+            DatabaseMetaDataSnapshot snapshot = SNAPSHOTS.get(dataSource);
+            if (snapshot != null && (snapshot.hasTables() || !includeTables)) {
+                return snapshot;
+            }
+        }
+
+        DatabaseMetaDataSnapshot snapshot = (DatabaseMetaDataSnapshot) extractDatabaseMetaData(dataSource,
+                new DatabaseMetaDataCallback() {
+                    public Object processMetaData(DatabaseMetaData dbmd) throws SQLException, MetaDataAccessException {
+                        return new DatabaseMetaDataSnapshot(dbmd, includeTables);
+                    }
+                });
+        synchronized (SNAPSHOTS) {
+            SNAPSHOTS.put(dataSource, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Collects a {@link DatabaseMetaDataSnapshot} without table information.
+     *
+     * @see #snapshotDatabaseMetaData(javax.sql.DataSource, boolean)
+     */
+    public static DatabaseMetaDataSnapshot snapshotDatabaseMetaData(DataSource dataSource)
+            throws MetaDataAccessException {
+        return snapshotDatabaseMetaData(dataSource, false);
+    }
+
+    /**
+     * Discards the cached snapshot for the given DataSource, if any.
+     *
+     * @param dataSource the DataSource whose snapshot should be discarded
+     */
+    public static void evictDatabaseMetaDataSnapshot(DataSource dataSource) {
+        synchronized (SNAPSHOTS) {
+            SNAPSHOTS.remove(dataSource);
+        }
+    }
 }
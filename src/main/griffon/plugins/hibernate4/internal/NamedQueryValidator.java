@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4.internal;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.ResultSetMappingDefinition;
+import org.hibernate.engine.query.spi.QueryPlanCache;
+import org.hibernate.engine.query.spi.sql.NativeSQLQuerySpecification;
+import org.hibernate.engine.spi.NamedQueryDefinition;
+import org.hibernate.engine.spi.NamedSQLQueryDefinition;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compiles every named HQL and native SQL query of a Configuration into the query plan
+ * cache of its SessionFactory, in parallel, collecting every failure instead of stopping
+ * at the first one.
+ *
+ * @author Andres Almiray
+ */
+public class NamedQueryValidator {
+    private static final Logger LOG = LoggerFactory.getLogger(NamedQueryValidator.class);
+
+    private final String sessionFactoryName;
+    private final int parallelism;
+
+    public NamedQueryValidator(String sessionFactoryName, int parallelism) {
+        this.sessionFactoryName = sessionFactoryName;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return failures keyed by query name; empty when every query compiled
+     */
+    public Map<String, HibernateException> validate(Configuration config, SessionFactoryImplementor sessionFactory) {
+        final QueryPlanCache queryPlanCache = sessionFactory.getQueryPlanCache();
+        // Hibernate 4.1 returns raw maps for native queries and result set mappings
+        @SuppressWarnings("unchecked")
+        final Map<String, ResultSetMappingDefinition> resultSetMappings = config.getSqlResultSetMappings();
+        @SuppressWarnings("unchecked")
+        Map<String, NamedSQLQueryDefinition> sqlQueries = config.getNamedSQLQueries();
+        List<Callable<Void>> checks = new ArrayList<Callable<Void>>();
+        final Map<String, HibernateException> errors = new ConcurrentHashMap<String, HibernateException>();
+
+        for (final Map.Entry<String, NamedQueryDefinition> entry : config.getNamedQueries().entrySet()) {
+            checks.add(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        queryPlanCache.getHQLQueryPlan(entry.getValue().getQueryString(), false, Collections.emptyMap());
+                    } catch (HibernateException e) {
+                        errors.put(entry.getKey(), e);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (final Map.Entry<String, NamedSQLQueryDefinition> entry : sqlQueries.entrySet()) {
+            checks.add(new Callable<Void>() {
+                public Void call() {
+                    NamedSQLQueryDefinition definition = entry.getValue();
+                    try {
+                        NativeSQLQuerySpecification specification;
+                        if (definition.getResultSetRef() != null) {
+                            ResultSetMappingDefinition mapping = resultSetMappings.get(definition.getResultSetRef());
+                            if (mapping == null) {
+                                throw new HibernateException("Unable to find resultset-ref definition: " + definition.getResultSetRef());
+                            }
+                            specification = new NativeSQLQuerySpecification(definition.getQueryString(), mapping.getQueryReturns(), definition.getQuerySpaces());
+                        } else {
+                            specification = new NativeSQLQuerySpecification(definition.getQueryString(), definition.getQueryReturns(), definition.getQuerySpaces());
+                        }
+                        queryPlanCache.getNativeSQLQueryPlan(specification);
+                    } catch (HibernateException e) {
+                        errors.put(entry.getKey(), e);
+                    }
+                    return null;
+                }
+            });
+        }
+        if (checks.isEmpty()) return errors;
+
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, checks.size()), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hibernate4-query-check-" + sessionFactoryName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            executor.invokeAll(checks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Interrupted while checking named queries of '" + sessionFactoryName + "'", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Checked " + checks.size() + " named queries of '" + sessionFactoryName + "' in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4.internal;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import static griffon.plugins.hibernate4.internal.SnapshotInput.*;
+
+/**
+ * A table of query results stored in a file that is memory mapped for reading, so that
+ * rows are decoded on access instead of being held on the heap.
+ * <p/>
+ * The file starts with a magic number, a format version, the version token the rows were
+ * read with and the column names and codecs. Rows follow, encoded like snapshot rows, and
+ * the file ends with the offset of every row, the row count and the position of those
+ * offsets.
+ *
+ * @author Andres Almiray
+ */
+public final class ReferenceTableFile {
+    private static final int MAGIC = 0x47483452;
+    private static final int FORMAT_VERSION = 1;
+
+    private final String versionToken;
+    private final String[] columnNames;
+    private final int[] codecs;
+    private final ByteBuffer buffer;
+    private final int rowCount;
+    private final int index;
+
+    private ReferenceTableFile(String versionToken, String[] columnNames, int[] codecs, ByteBuffer buffer, int rowCount, int index) {
+        this.versionToken = versionToken;
+        this.columnNames = columnNames;
+        this.codecs = codecs;
+        this.buffer = buffer;
+        this.rowCount = rowCount;
+        this.index = index;
+    }
+
+    public static ReferenceTableFile map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            long size = raf.length();
+            if (size > Integer.MAX_VALUE) throw new IOException("Reference table " + file + " is too large to be mapped");
+            // the mapping remains valid once the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a reference table file: " + file);
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported reference table version " + version);
+            String versionToken = getString(buffer);
+            int columnCount = buffer.getInt();
+            String[] columnNames = new String[columnCount];
+            int[] codecs = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = getString(buffer);
+                codecs[i] = buffer.getInt();
+            }
+            int index = buffer.getInt(buffer.limit() - 4);
+            int rowCount = buffer.getInt(buffer.limit() - 8);
+            if (index < 0 || index + 4L * rowCount != buffer.limit() - 8) throw new IOException("Corrupt reference table " + file);
+            return new ReferenceTableFile(versionToken, columnNames, codecs, buffer, rowCount, index);
+        } catch (RuntimeException e) {
+            // truncated or otherwise damaged files surface as buffer exceptions
+            IOException x = new IOException("Corrupt reference table " + file);
+            x.initCause(e);
+            throw x;
+        }
+    }
+
+    /**
+     * Writes every row of the result set to the given file.
+     *
+     * @return the number of rows written
+     */
+    public static int write(File file, String versionToken, ResultSet rs) throws SQLException, IOException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        int[] codecs = new int[columnCount];
+        File offsetsFile = File.createTempFile("offsets", ".tmp", file.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        try {
+            DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)));
+            int rowCount = 0;
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, versionToken);
+                out.writeInt(columnCount);
+                for (int i = 0; i < columnCount; i++) {
+                    codecs[i] = codecOf(metaData.getColumnType(i + 1));
+                    writeString(out, metaData.getColumnLabel(i + 1));
+                    out.writeInt(codecs[i]);
+                }
+                while (rs.next()) {
+                    offsets.writeInt(out.size());
+                    writeRow(out, rs, codecs);
+                    rowCount++;
+                    if (out.size() == Integer.MAX_VALUE) throw new IOException("Reference table " + file + " is too large to be mapped");
+                }
+            } finally {
+                offsets.close();
+            }
+            int index = out.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(offsetsFile)));
+            try {
+                for (int i = 0; i < rowCount; i++) out.writeInt(in.readInt());
+            } finally {
+                in.close();
+            }
+            out.writeInt(rowCount);
+            out.writeInt(index);
+            return rowCount;
+        } finally {
+            out.close();
+            offsetsFile.delete();
+        }
+    }
+
+    public String getVersionToken() {
+        return versionToken;
+    }
+
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getSize() {
+        return buffer.limit();
+    }
+
+    public Object getValue(int row, int column) {
+        if (column < 0 || column >= codecs.length) throw new IndexOutOfBoundsException("Column " + column);
+        ByteBuffer view = rowView(row);
+        for (int i = 0; i < column; i++) skip(view, codecs[i]);
+        return read(view, codecs[column]);
+    }
+
+    public Object[] getRow(int row) {
+        ByteBuffer view = rowView(row);
+        Object[] values = new Object[codecs.length];
+        for (int i = 0; i < codecs.length; i++) values[i] = read(view, codecs[i]);
+        return values;
+    }
+
+    private ByteBuffer rowView(int row) {
+        if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        // every reader works on its own view of the shared mapping
+        ByteBuffer view = buffer.duplicate();
+        view.position(buffer.getInt(index + 4 * row));
+        return view;
+    }
+
+    private static Object read(ByteBuffer view, int codec) {
+        if (view.get() == 0) return null;
+        switch (codec) {
+            case CODEC_LONG:
+                return view.getLong();
+            case CODEC_DOUBLE:
+                return view.getDouble();
+            case CODEC_BOOLEAN:
+                return view.get() != 0;
+            case CODEC_DECIMAL:
+                return new BigDecimal(getString(view));
+            case CODEC_DATE:
+                return new java.sql.Date(view.getLong());
+            case CODEC_TIME:
+                return new java.sql.Time(view.getLong());
+            case CODEC_TIMESTAMP:
+                Timestamp timestamp = new Timestamp(view.getLong());
+                timestamp.setNanos(view.getInt());
+                return timestamp;
+            case CODEC_BYTES:
+                byte[] bytes = new byte[view.getInt()];
+                view.get(bytes);
+                return bytes;
+            default:
+                return getString(view);
+        }
+    }
+
+    private static void skip(ByteBuffer view, int codec) {
+        if (view.get() == 0) return;
+        switch (codec) {
+            case CODEC_LONG:
+            case CODEC_DOUBLE:
+            case CODEC_DATE:
+            case CODEC_TIME:
+                view.position(view.position() + 8);
+                break;
+            case CODEC_BOOLEAN:
+                view.position(view.position() + 1);
+                break;
+            case CODEC_TIMESTAMP:
+                view.position(view.position() + 12);
+                break;
+            default:
+                int length = view.getInt();
+                view.position(view.position() + length);
+        }
+    }
+
+    private static void writeRow(DataOutputStream out, ResultSet rs, int[] codecs) throws SQLException, IOException {
+        for (int i = 0; i < codecs.length; i++) {
+            int column = i + 1;
+            switch (codecs[i]) {
+                case CODEC_LONG:
+                    long l = rs.getLong(column);
+                    if (writeNullFlag(out, rs.wasNull())) out.writeLong(l);
+                    break;
+                case CODEC_DOUBLE:
+                    double d = rs.getDouble(column);
+                    if (writeNullFlag(out, rs.wasNull())) out.writeDouble(d);
+                    break;
+                case CODEC_BOOLEAN:
+                    boolean b = rs.getBoolean(column);
+                    if (writeNullFlag(out, rs.wasNull())) out.writeByte(b ? 1 : 0);
+                    break;
+                case CODEC_DECIMAL:
+                    BigDecimal decimal = rs.getBigDecimal(column);
+                    if (writeNullFlag(out, decimal == null)) writeString(out, decimal.toString());
+                    break;
+                case CODEC_DATE:
+                    java.sql.Date date = rs.getDate(column);
+                    if (writeNullFlag(out, date == null)) out.writeLong(date.getTime());
+                    break;
+                case CODEC_TIME:
+                    java.sql.Time time = rs.getTime(column);
+                    if (writeNullFlag(out, time == null)) out.writeLong(time.getTime());
+                    break;
+                case CODEC_TIMESTAMP:
+                    Timestamp timestamp = rs.getTimestamp(column);
+                    if (writeNullFlag(out, timestamp == null)) {
+                        out.writeLong(timestamp.getTime());
+                        out.writeInt(timestamp.getNanos());
+                    }
+                    break;
+                case CODEC_BYTES:
+                    byte[] bytes = rs.getBytes(column);
+                    if (writeNullFlag(out, bytes == null)) {
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    break;
+                default:
+                    String s = rs.getString(column);
+                    if (writeNullFlag(out, s == null)) writeString(out, s);
+            }
+        }
+    }
+
+    private static boolean writeNullFlag(DataOutputStream out, boolean isNull) throws IOException {
+        out.writeByte(isNull ? 0 : 1);
+        return !isNull;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer view) {
+        byte[] bytes = new byte[view.getInt()];
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4.internal;
+
+import griffon.plugins.hibernate4.Hibernate4Replica;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metamodel.source.MetadataImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Records inserts, updates and deletes of replicated tables in the change log of the
+ * local replica, within the transaction that performs them.
+ *
+ * @author Andres Almiray
+ * @see Hibernate4Replica
+ */
+public class ReplicaChangeLog implements Integrator, PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+    private static final long serialVersionUID = 1L;
+    private final Map<String, String> tables = new HashMap<String, String>();
+
+    public ReplicaChangeLog(Collection<String> tableNames) {
+        for (String tableName : tableNames) {
+            tables.put(tableName.toLowerCase(Locale.ENGLISH), tableName);
+        }
+    }
+
+    public void onPostInsert(PostInsertEvent event) {
+        record(event.getSession(), event.getPersister(), event.getId(), Hibernate4Replica.INSERT);
+    }
+
+    public void onPostUpdate(PostUpdateEvent event) {
+        record(event.getSession(), event.getPersister(), event.getId(), Hibernate4Replica.UPDATE);
+    }
+
+    public void onPostDelete(PostDeleteEvent event) {
+        record(event.getSession(), event.getPersister(), event.getId(), Hibernate4Replica.DELETE);
+    }
+
+    public void integrate(Configuration configuration, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        register(serviceRegistry);
+    }
+
+    public void integrate(MetadataImplementor metadata, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        register(serviceRegistry);
+    }
+
+    public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+    }
+
+    private void register(SessionFactoryServiceRegistry serviceRegistry) {
+        EventListenerRegistry listeners = serviceRegistry.getService(EventListenerRegistry.class);
+        listeners.appendListeners(EventType.POST_INSERT, this);
+        listeners.appendListeners(EventType.POST_UPDATE, this);
+        listeners.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    private void record(EventSource session, EntityPersister persister, Serializable id, final String operation) {
+        if (!(persister instanceof AbstractEntityPersister)) return;
+        final String tableName = resolveTable(((AbstractEntityPersister) persister).getTableName());
+        if (tableName == null) return;
+        final String rowId = String.valueOf(id);
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement("insert into " + Hibernate4Replica.CHANGES_TABLE +
+                    " (TABLE_NAME, ROW_ID, OPERATION, CHANGED_AT) values (?, ?, ?, CURRENT_TIMESTAMP)");
+                try {
+                    statement.setString(1, tableName);
+                    statement.setString(2, rowId);
+                    statement.setString(3, operation);
+                    statement.executeUpdate();
+                } finally {
+                    JdbcUtils.closeStatement(statement);
+                }
+            }
+        });
+    }
+
+    private String resolveTable(String mappedName) {
+        String name = mappedName.replace("\"", "").replace("`", "").toLowerCase(Locale.ENGLISH);
+        String tableName = tables.get(name);
+        if (tableName == null && name.indexOf('.') > -1) {
+            tableName = tables.get(name.substring(name.lastIndexOf('.') + 1));
+        }
+        return tableName;
+    }
+}
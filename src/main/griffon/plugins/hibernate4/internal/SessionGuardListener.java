@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package griffon.plugins.hibernate4.internal;
+
+import griffon.plugins.hibernate4.Hibernate4SessionGuard;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.metamodel.source.MetadataImplementor;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import java.util.Map;
+
+/**
+ * Marks the safe points at which a {@link Hibernate4SessionGuard} may inspect, flush and
+ * clear a session: once a save, update or persist has completed, and once a session has
+ * been flushed ahead of a query.
+ *
+ * @author Andres Almiray
+ */
+public class SessionGuardListener implements Integrator, SaveOrUpdateEventListener, PersistEventListener, AutoFlushEventListener {
+    private static final long serialVersionUID = 1L;
+
+    public void onSaveOrUpdate(SaveOrUpdateEvent event) throws HibernateException {
+        Hibernate4SessionGuard.safePoint(event.getSession());
+    }
+
+    public void onPersist(PersistEvent event) throws HibernateException {
+        Hibernate4SessionGuard.safePoint(event.getSession());
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void onPersist(PersistEvent event, Map createdAlready) throws HibernateException {
+        // cascaded persists are never safe points
+    }
+
+    public void onAutoFlush(AutoFlushEvent event) throws HibernateException {
+        Hibernate4SessionGuard.safePoint(event.getSession());
+    }
+
+    public void integrate(Configuration configuration, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        register(serviceRegistry);
+    }
+
+    public void integrate(MetadataImplementor metadata, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+        register(serviceRegistry);
+    }
+
+    public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+    }
+
+    private void register(SessionFactoryServiceRegistry serviceRegistry) {
+        EventListenerRegistry listeners = serviceRegistry.getService(EventListenerRegistry.class);
+        listeners.appendListeners(EventType.SAVE_UPDATE, this);
+        listeners.appendListeners(EventType.SAVE, this);
+        listeners.appendListeners(EventType.UPDATE, this);
+        listeners.appendListeners(EventType.PERSIST, this);
+        listeners.appendListeners(EventType.AUTO_FLUSH, this);
+    }
+}
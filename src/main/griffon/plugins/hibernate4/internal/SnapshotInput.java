@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate4.internal;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads snapshot files through a buffered {@code FileChannel}.
+ * <p/>
+ * A snapshot starts with a magic number and a format version, followed by one section
+ * per table (name, column names and JDBC types, then rows) and a directory holding the
+ * offset of every section. The last 8 bytes of the file point to the directory.
+ *
+ * @author Andres Almiray
+ * @see SnapshotOutput
+ */
+public class SnapshotInput implements Closeable {
+    static final int MAGIC = 0x47483453;
+    static final int VERSION = 1;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final byte ROW = 1;
+    static final byte END_OF_TABLE = 0;
+
+    static final int CODEC_STRING = 0;
+    static final int CODEC_LONG = 1;
+    static final int CODEC_DOUBLE = 2;
+    static final int CODEC_BOOLEAN = 3;
+    static final int CODEC_DECIMAL = 4;
+    static final int CODEC_DATE = 5;
+    static final int CODEC_TIME = 6;
+    static final int CODEC_TIMESTAMP = 7;
+    static final int CODEC_BYTES = 8;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int[] columnTypes;
+
+    public SnapshotInput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.limit(0);
+        if (readInt() != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        int version = readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    public void seek(long position) throws IOException {
+        channel.position(position);
+        buffer.clear().limit(0);
+    }
+
+    public Map<String, Long> readDirectory() throws IOException {
+        seek(channel.size() - 8);
+        seek(readLong());
+        int count = readInt();
+        Map<String, Long> sections = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < count; i++) {
+            sections.put(readString(), readLong());
+        }
+        return sections;
+    }
+
+    public String[] readTableHeader() throws IOException {
+        readString();
+        int count = readInt();
+        String[] columns = new String[count];
+        columnTypes = new int[count];
+        for (int i = 0; i < count; i++) {
+            columns[i] = readString();
+            columnTypes[i] = readInt();
+        }
+        return columns;
+    }
+
+    public int[] getColumnTypes() {
+        return columnTypes;
+    }
+
+    public boolean readRow(PreparedStatement statement, int[] types) throws SQLException, IOException {
+        if (readByte() == END_OF_TABLE) return false;
+        for (int i = 0; i < types.length; i++) {
+            int column = i + 1;
+            if (readByte() == 0) {
+                statement.setNull(column, types[i]);
+                continue;
+            }
+            switch (codecOf(types[i])) {
+                case CODEC_LONG:
+                    statement.setLong(column, readLong());
+                    break;
+                case CODEC_DOUBLE:
+                    statement.setDouble(column, Double.longBitsToDouble(readLong()));
+                    break;
+                case CODEC_BOOLEAN:
+                    statement.setBoolean(column, readByte() != 0);
+                    break;
+                case CODEC_DECIMAL:
+                    statement.setBigDecimal(column, new BigDecimal(readString()));
+                    break;
+                case CODEC_DATE:
+                    statement.setDate(column, new java.sql.Date(readLong()));
+                    break;
+                case CODEC_TIME:
+                    statement.setTime(column, new java.sql.Time(readLong()));
+                    break;
+                case CODEC_TIMESTAMP:
+                    Timestamp timestamp = new Timestamp(readLong());
+                    timestamp.setNanos(readInt());
+                    statement.setTimestamp(column, timestamp);
+                    break;
+                case CODEC_BYTES:
+                    statement.setBytes(column, readBytes());
+                    break;
+                default:
+                    statement.setString(column, readString());
+            }
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static int codecOf(int sqlType) {
+        switch (sqlType) {
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return CODEC_LONG;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return CODEC_DOUBLE;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return CODEC_BOOLEAN;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return CODEC_DECIMAL;
+            case Types.DATE:
+                return CODEC_DATE;
+            case Types.TIME:
+                return CODEC_TIME;
+            case Types.TIMESTAMP:
+                return CODEC_TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return CODEC_BYTES;
+            default:
+                return CODEC_STRING;
+        }
+    }
+
+    private byte readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    private int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    private long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    private String readString() throws IOException {
+        return new String(readBytes(), UTF8);
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[readInt()];
+        int offset = 0;
+        while (offset < bytes.length) {
+            require(Math.min(BUFFER_SIZE, bytes.length - offset));
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return;
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012-2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package griffon.plugins.hibernate4.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+
+import static griffon.plugins.hibernate4.internal.SnapshotInput.*;
+
+/**
+ * Writes snapshot files through a buffered {@code FileChannel}.
+ *
+ * @author Andres Almiray
+ * @see SnapshotInput
+ */
+public class SnapshotOutput implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public SnapshotOutput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        channel.truncate(0);
+        writeInt(MAGIC);
+        writeInt(VERSION);
+    }
+
+    public long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    public void writeTableHeader(String table, String[] columns, int[] types) throws IOException {
+        writeString(table);
+        writeInt(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            writeString(columns[i]);
+            writeInt(types[i]);
+        }
+    }
+
+    public void writeRow(ResultSet rs, int[] types) throws SQLException, IOException {
+        writeByte(ROW);
+        for (int i = 0; i < types.length; i++) {
+            int column = i + 1;
+            switch (codecOf(types[i])) {
+                case CODEC_LONG:
+                    long l = rs.getLong(column);
+                    if (writeNullFlag(rs.wasNull())) writeLong(l);
+                    break;
+                case CODEC_DOUBLE:
+                    double d = rs.getDouble(column);
+                    if (writeNullFlag(rs.wasNull())) writeLong(Double.doubleToRawLongBits(d));
+                    break;
+                case CODEC_BOOLEAN:
+                    boolean b = rs.getBoolean(column);
+                    if (writeNullFlag(rs.wasNull())) writeByte(b ? 1 : 0);
+                    break;
+                case CODEC_DECIMAL:
+                    BigDecimal decimal = rs.getBigDecimal(column);
+                    if (writeNullFlag(decimal == null)) writeString(decimal.toString());
+                    break;
+                case CODEC_DATE:
+                    java.sql.Date date = rs.getDate(column);
+                    if (writeNullFlag(date == null)) writeLong(date.getTime());
+                    break;
+                case CODEC_TIME:
+                    java.sql.Time time = rs.getTime(column);
+                    if (writeNullFlag(time == null)) writeLong(time.getTime());
+                    break;
+                case CODEC_TIMESTAMP:
+                    Timestamp timestamp = rs.getTimestamp(column);
+                    if (writeNullFlag(timestamp == null)) {
+                        writeLong(timestamp.getTime());
+                        writeInt(timestamp.getNanos());
+                    }
+                    break;
+                case CODEC_BYTES:
+                    byte[] bytes = rs.getBytes(column);
+                    if (writeNullFlag(bytes == null)) writeBytes(bytes);
+                    break;
+                default:
+                    String s = rs.getString(column);
+                    if (writeNullFlag(s == null)) writeString(s);
+            }
+        }
+    }
+
+    public void writeEndOfTable() throws IOException {
+        writeByte(END_OF_TABLE);
+    }
+
+    public void writeDirectory(Map<String, Long> sections) throws IOException {
+        long directory = position();
+        writeInt(sections.size());
+        for (Map.Entry<String, Long> section : sections.entrySet()) {
+            writeString(section.getKey());
+            writeLong(section.getValue());
+        }
+        writeLong(directory);
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private boolean writeNullFlag(boolean isNull) throws IOException {
+        writeByte(isNull ? 0 : 1);
+        return !isNull;
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    private void writeInt(int i) throws IOException {
+        ensure(4);
+        buffer.putInt(i);
+    }
+
+    private void writeLong(long l) throws IOException {
+        ensure(8);
+        buffer.putLong(l);
+    }
+
+    private void writeString(String s) throws IOException {
+        writeBytes(s.getBytes(UTF8));
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        writeInt(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) flush();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}